@@ -0,0 +1,60 @@
+package bt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bt.compiler.Compiler;
+
+/**
+ * Compiles and links every sample and dapp contract, no node is required.
+ *
+ * Run with {@code ./gradlew jmh -PjmhArgs=CompilerBenchmark}.
+ *
+ * @author jjos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompilerBenchmark {
+
+	@Param({ "bt.sample.AlwaysRunning", "bt.sample.Auction", "bt.sample.AuctionNFT", "bt.sample.BurstGame",
+			"bt.sample.Crowdfund", "bt.sample.CrowdfundPlatform", "bt.sample.Echo", "bt.sample.Faucet",
+			"bt.sample.Forward", "bt.sample.ForwardMin", "bt.sample.HappyCIP20", "bt.sample.HashLoop",
+			"bt.sample.HashedTimeLock", "bt.sample.Hello", "bt.sample.KohINoor", "bt.sample.MultiSigLock",
+			"bt.sample.NFT2", "bt.sample.OddsGame", "bt.sample.PaymentChannel", "bt.sample.ProofOfBurn",
+			"bt.sample.Refund", "bt.sample.Sha256_64", "bt.sample.TXCounter", "bt.sample.TXCounter2",
+			"bt.sample.TipThanks", "bt.sample.UniqueToken", "bt.sample.Will", "bt.dapps.Bicho",
+			"bt.dapps.Cryptoball" })
+	String contract;
+
+	Class<? extends Contract> clazz;
+
+	@Setup
+	public void setup() throws Exception {
+		clazz = Class.forName(contract).asSubclass(Contract.class);
+	}
+
+	@Benchmark
+	public Compiler compileAndLink() throws Exception {
+		Compiler comp = new Compiler(clazz);
+		comp.compile();
+		// linking a contract with errors is not possible
+		if (comp.getErrors().isEmpty())
+			comp.link();
+		return comp;
+	}
+}
@@ -0,0 +1,70 @@
+package bt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bt.sample.TXCounter;
+
+/**
+ * Forges blocks with a number of contracts receiving a number of transactions
+ * per block, either running the Java class or the compiled bytecode.
+ *
+ * A new emulator is used for every trial, it keeps every block so measurements
+ * are kept short.
+ *
+ * @author jjos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmulatorBenchmark {
+
+	@Param({ "1", "10", "100" })
+	int contracts;
+
+	@Param({ "1", "10", "100" })
+	int txsPerBlock;
+
+	@Param({ "false", "true" })
+	boolean bytecode;
+
+	Emulator emu;
+	Address sender;
+	Address[] receivers;
+
+	@Setup
+	public void setup() throws Exception {
+		emu = new Emulator();
+		sender = emu.getAddress("BENCH_SENDER");
+		emu.airDrop(sender, Long.MAX_VALUE / 4);
+
+		receivers = new Address[contracts];
+		for (int i = 0; i < contracts; i++) {
+			receivers[i] = emu.getAddress("BENCH_CONTRACT_" + i);
+			emu.createConctract(sender, receivers[i], TXCounter.class, Contract.ONE_BURST, bytecode);
+		}
+		emu.forgeBlock();
+	}
+
+	@Benchmark
+	public Block forgeBlock() throws Exception {
+		for (int i = 0; i < txsPerBlock; i++)
+			emu.send(sender, receivers[i % contracts], 2 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		return emu.getPrevBlock();
+	}
+}
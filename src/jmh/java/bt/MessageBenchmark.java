@@ -0,0 +1,68 @@
+package bt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bt.compiler.Compiler;
+import bt.compiler.Method;
+import bt.sample.PaymentChannel;
+
+/**
+ * Message building, hashing and method call encoding.
+ *
+ * @author jjos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+	String message = "A message with exactly 32 bytes!";
+	Register register;
+	Register output = new Register();
+	Method method;
+	Address address;
+
+	@Setup
+	public void setup() throws Exception {
+		register = Register.newInstance(1, 2, 3, 4);
+		Compiler comp = new Compiler(PaymentChannel.class);
+		comp.compile();
+		method = comp.getMethod("openChannel");
+		address = Emulator.getInstance().getAddress("BENCH_PAYEE");
+	}
+
+	@Benchmark
+	public Register newMessage() {
+		return Register.newMessage(message);
+	}
+
+	@Benchmark
+	public Register performSHA256() {
+		return Contract.performSHA256_(register);
+	}
+
+	@Benchmark
+	public Register performSHA256Into() {
+		Contract.performSHA256_(register, output);
+		return output;
+	}
+
+	@Benchmark
+	public byte[] callMethodMessage() {
+		return BT.callMethodMessage(method, address, 1440L);
+	}
+}
@@ -0,0 +1,85 @@
+package bt;
+
+import bt.vm.Machine;
+
+/**
+ * The cost of running a compiled contract on one block of the emulator.
+ *
+ * Every AT instruction executed counts as one step and every API call as
+ * {@link Machine#API_STEP_MULTIPLIER} steps, each step charged
+ * {@link Contract#STEP_FEE} from the contract balance. Only contracts running
+ * the bytecode are metered.
+ *
+ * @author jjos
+ */
+public class ActivationCost {
+
+	Address contract;
+	long height;
+	int status;
+	long steps;
+	long apiCalls;
+	long fee;
+
+	ActivationCost(Address contract, long height, int status, long steps, long apiCalls, long fee) {
+		this.contract = contract;
+		this.height = height;
+		this.status = status;
+		this.steps = steps;
+		this.apiCalls = apiCalls;
+		this.fee = fee;
+	}
+
+	public Address getContract() {
+		return contract;
+	}
+
+	/**
+	 * @return the block height this run happened
+	 */
+	public long getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return how the run ended, one of the {@link Machine} status constants
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the steps executed, including the API calls
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return the number of API calls executed
+	 */
+	public long getApiCalls() {
+		return apiCalls;
+	}
+
+	/**
+	 * @return the fee charged in NQT
+	 */
+	public long getFee() {
+		return fee;
+	}
+
+	/**
+	 * @return true if the run halted because the balance could not pay the next
+	 *         step
+	 */
+	public boolean isOutOfBalance() {
+		return status == Machine.STATUS_OUT_OF_BALANCE;
+	}
+
+	@Override
+	public String toString() {
+		return "height " + height + ": " + steps + " steps (" + apiCalls + " API calls), fee "
+				+ ((double) fee) / Contract.ONE_BURST + (isOutOfBalance() ? ", out of balance" : "");
+	}
+}
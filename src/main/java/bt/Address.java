@@ -1,5 +1,7 @@
 package bt;
 
+import java.util.ArrayList;
+
 /**
  * A burstcoin address.
  * 
@@ -17,7 +19,17 @@ public class Address {
 	String rsAddress;
 	long balance;
 	Contract contract;
+	BytecodeContract bytecode;
 	boolean sleeping;
+	/** Forged transactions received, sorted by timestamp */
+	ArrayList<Transaction> txsReceived = new ArrayList<>();
+	/** Cost of each run of the compiled contract on this address */
+	ArrayList<ActivationCost> activationCosts = new ArrayList<>();
+	/** The lists above are shared with a fork and should be copied before changing */
+	boolean sharedLists;
+	/** Ids of the forged transactions received, sorted by timestamp, with compact history */
+	long[] txIds;
+	int ntxIds;
 	
 	/**
 	 * Should be called by the emulator only.
@@ -32,6 +44,30 @@ public class Address {
 		this.balance = balance;
 		this.rsAddress = rs;
 	}
+
+	/**
+	 * Copy of the given address for a forked emulator, the contracts are copied
+	 * separately.
+	 */
+	Address(Address other) {
+		this(other.id, other.balance, other.rsAddress);
+		sleeping = other.sleeping;
+		txsReceived = other.txsReceived;
+		activationCosts = other.activationCosts;
+		sharedLists = other.sharedLists = true;
+	}
+
+	/**
+	 * Makes sure the transaction and cost lists are not shared before changing
+	 * them.
+	 */
+	void ownLists() {
+		if (sharedLists) {
+			txsReceived = new ArrayList<>(txsReceived);
+			activationCosts = new ArrayList<>(activationCosts);
+			sharedLists = false;
+		}
+	}
 	
 	/**
 	 * @return the reed solomon address
@@ -65,6 +101,14 @@ public class Address {
 		return contract;
 	}
 	
+	/**
+	 * @return the underlying bytecode contract or null
+	 */
+	@EmulatorWarning
+	public BytecodeContract getBytecode() {
+		return bytecode;
+	}
+
 	/**
 	 * @return true if it is a sleeping contract
 	 */
@@ -78,6 +122,22 @@ public class Address {
 		this.sleeping = sleeping;
 	}
 
+	/**
+	 * Addresses are equal if they have the same id, even if they come from
+	 * different forks of the emulator.
+	 */
+	@Override
+	@EmulatorWarning
+	public boolean equals(Object obj) {
+		return obj instanceof Address && ((Address) obj).id == id;
+	}
+
+	@Override
+	@EmulatorWarning
+	public int hashCode() {
+		return Long.hashCode(id);
+	}
+
 	@Override
 	@EmulatorWarning
 	public String toString() {
@@ -6,6 +6,7 @@ import java.nio.ByteOrder;
 import java.security.InvalidParameterException;
 
 import bt.compiler.Compiler;
+import bt.compiler.CompilerCache;
 import bt.compiler.Field;
 import bt.compiler.Method;
 import io.reactivex.Single;
@@ -93,15 +94,15 @@ public class BT {
      * {@link Compiler#getErrors()}, can get the methods with
      * {@link Compiler#getMethods()}.
      * 
+     * Compilations are cached, see {@link CompilerCache}, and the contract is
+     * linked only if there are no errors.
+     * 
      * @param contractClass
      * @return
      * @throws IOException
      */
     public static Compiler compileContract(Class<? extends Contract> contractClass) throws IOException {
-        Compiler comp = new Compiler(contractClass);
-        comp.compile();
-        comp.link();
-        return comp;
+        return CompilerCache.getInstance().compile(contractClass);
     }
 
     /**
@@ -27,12 +27,24 @@ public class Block {
 			this.height = prev.height +1;
 		}
 
-		// Just some random numbers for the block hash
-		for (int i = 0; i < hash.value.length; i++) {
-			hash.value[i] = (long) ((Math.random()-0.5) * 1e8);
-		}
+		// the hash is set by the emulator
 	}
 	
+	private Block() {
+	}
+
+	/**
+	 * @return a copy of this block, without its transactions, for a forked
+	 *         emulator
+	 */
+	Block copy() {
+		Block ret = new Block();
+		ret.prev = prev;
+		ret.height = height;
+		System.arraycopy(hash.value, 0, ret.hash.value, 0, hash.value.length);
+		return ret;
+	}
+
 	public long getHeight() {
 		return height;
 	}
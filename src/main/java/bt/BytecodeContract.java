@@ -0,0 +1,265 @@
+package bt;
+
+import bt.compiler.Compiler;
+import bt.compiler.Field;
+import bt.vm.Machine;
+import bt.vm.MachineApi;
+
+/**
+ * A contract running the compiled AT bytecode instead of the Java class.
+ *
+ * This way the emulator tests exactly the code produced by
+ * {@link Compiler#link()}, running it on a {@link Machine}.
+ *
+ * This class should only be used by the emulated block-chain.
+ *
+ * @author jjos
+ */
+public class BytecodeContract implements MachineApi {
+
+	/**
+	 * Default maximum number of steps per block, just a guard for the emulator
+	 * against infinite loops. Contracts exceeding it continue on the next block.
+	 */
+	public static final long DEFAULT_MAX_STEPS = 1000000L;
+
+	Emulator emulator;
+	Compiler compiler;
+	Machine machine;
+	Address address;
+	Address creator;
+	Timestamp creation;
+	long activationFee;
+	long maxSteps = DEFAULT_MAX_STEPS;
+
+	long prevBalance;
+	long pendingSent;
+	/** Fees of the machine when the current run started */
+	long runStartFees;
+	/** Block height to wake up when sleeping, -1 if not sleeping */
+	long sleepUntil = -1;
+	int status = Machine.STATUS_FINISHED;
+
+	BytecodeContract(Emulator emulator, Compiler compiler, Transaction tx, Timestamp creation) {
+		this.emulator = emulator;
+		this.compiler = compiler;
+		this.machine = new Machine(compiler.getCode(), compiler.getDataPages());
+		this.machine.setStepFee(Contract.STEP_FEE);
+		this.creator = tx.sender;
+		this.address = tx.receiver;
+		this.creation = creation;
+		this.activationFee = tx.amount;
+		this.address.bytecode = this;
+	}
+
+	/**
+	 * Copy of the given contract for a forked emulator, with the given addresses
+	 * of that emulator.
+	 */
+	BytecodeContract(Emulator emulator, BytecodeContract other, Address address, Address creator) {
+		this.emulator = emulator;
+		this.compiler = other.compiler;
+		this.machine = new Machine(other.machine);
+		this.creator = creator;
+		this.address = address;
+		this.creation = other.creation;
+		this.activationFee = other.activationFee;
+		this.maxSteps = other.maxSteps;
+		this.prevBalance = other.prevBalance;
+		this.runStartFees = other.runStartFees;
+		this.sleepUntil = other.sleepUntil;
+		this.status = other.status;
+		this.address.bytecode = this;
+	}
+
+	/**
+	 * Runs the machine until it finishes, stops, sleeps, reaches the step limit
+	 * or cannot pay for the next step. The fees are taken from the balance and
+	 * the cost of this run is added to {@link Address#activationCosts}.
+	 *
+	 * @return one of the {@link Machine} status constants
+	 */
+	int run() {
+		if (status != Machine.STATUS_STEP_LIMIT && status != Machine.STATUS_OUT_OF_BALANCE)
+			machine.activate();
+		pendingSent = 0;
+		runStartFees = machine.getFees();
+		long startSteps = machine.getSteps();
+		long startApiCalls = machine.getApiCalls();
+		status = machine.run(maxSteps, this);
+
+		long fee = machine.getFees() - runStartFees;
+		address.balance -= fee;
+		runStartFees = machine.getFees();
+		address.ownLists();
+		address.activationCosts.add(new ActivationCost(address, emulator.getCurrentBlock().height, status,
+				machine.getSteps() - startSteps, machine.getApiCalls() - startApiCalls, fee));
+
+		sleepUntil = -1;
+		if (status == Machine.STATUS_SLEEPING)
+			sleepUntil = emulator.getCurrentBlock().height + machine.getSleepBlocks();
+
+		prevBalance = getCurrentBalance();
+		return status;
+	}
+
+	/**
+	 * @return true if this contract should run on the given block regardless of
+	 *         incoming transactions
+	 */
+	boolean isDue(long height) {
+		if (status == Machine.STATUS_STEP_LIMIT)
+			return true;
+		return sleepUntil >= 0 && sleepUntil <= height;
+	}
+
+	boolean isSleeping() {
+		return sleepUntil >= 0;
+	}
+
+	/**
+	 * @return the machine running this contract
+	 */
+	@EmulatorWarning
+	public Machine getMachine() {
+		return machine;
+	}
+
+	/**
+	 * @return the compiled contract
+	 */
+	@EmulatorWarning
+	public Compiler getCompiler() {
+		return compiler;
+	}
+
+	/**
+	 * @return the value of the given field, as stored on the data segment
+	 */
+	@EmulatorWarning
+	public long getFieldValue(String name) {
+		return machine.getData(compiler.getFieldAddress(name));
+	}
+
+	@EmulatorWarning
+	public String getFieldValues() {
+		String ret = "<html>";
+		for (Field f : compiler.getFields()) {
+			long v = machine.getData(f.getAddress());
+			ret += "<b>" + f.getName() + "</b> = ";
+			if (f.getNode().desc.equals("L" + Address.class.getName().replace('.', '/') + ";"))
+				ret += v == 0 ? "null" : emulator.getAddress(v).toString();
+			else
+				ret += v;
+			ret += "<br>";
+		}
+		return ret;
+	}
+
+	/**
+	 * Copies the message of a transaction as the compiled contract sees it, all
+	 * zeros for no message.
+	 */
+	void encodeMessage(Register msg, long[] dest) {
+		if (msg == null) {
+			dest[0] = dest[1] = dest[2] = dest[3] = 0;
+			return;
+		}
+		System.arraycopy(msg.value, 0, dest, 0, 4);
+	}
+
+	@Override
+	public long getBlockTimestamp() {
+		return emulator.getCurrentBlock().height << 32;
+	}
+
+	@Override
+	public long getCreationTimestamp() {
+		return creation.value;
+	}
+
+	@Override
+	public long getLastBlockTimestamp() {
+		return emulator.getPrevBlock().height << 32;
+	}
+
+	@Override
+	public void getLastBlockHash(long[] dest) {
+		System.arraycopy(emulator.getPrevBlock().hash.value, 0, dest, 0, 4);
+	}
+
+	@Override
+	public long getTxAfterTimestamp(long timestamp) {
+		return emulator.getTxIdAfter(address, timestamp, activationFee);
+	}
+
+	@Override
+	public long getTxType(long txId) {
+		Transaction tx = emulator.getTx(txId);
+		return tx != null && tx.msg != null ? 1L : 0L;
+	}
+
+	@Override
+	public long getTxAmount(long txId) {
+		Transaction tx = emulator.getTx(txId);
+		return tx == null ? 0L : tx.amount - activationFee;
+	}
+
+	@Override
+	public long getTxTimestamp(long txId) {
+		Transaction tx = emulator.getTx(txId);
+		return tx == null ? 0L : tx.ts.value;
+	}
+
+	@Override
+	public long getTxRandomId(long txId) {
+		Transaction tx = emulator.getTx(txId);
+		if (tx == null)
+			return 0L;
+		// deterministic mix of the block hash and the transaction id
+		return Math.abs(SplitMix64.mix(tx.block.hash.value[0] ^ (txId * SplitMix64.GOLDEN_GAMMA)));
+	}
+
+	@Override
+	public void getTxMessage(long txId, long[] dest) {
+		Transaction tx = emulator.getTx(txId);
+		encodeMessage(tx == null ? null : tx.msg, dest);
+	}
+
+	@Override
+	public long getTxSender(long txId) {
+		Transaction tx = emulator.getTx(txId);
+		return tx == null || tx.sender == null ? 0L : tx.sender.id;
+	}
+
+	@Override
+	public long getCreator() {
+		return creator.id;
+	}
+
+	@Override
+	public long getCurrentBalance() {
+		// fees of this run are only taken from the address when it ends
+		return address.balance - pendingSent - (machine.getFees() - runStartFees);
+	}
+
+	@Override
+	public long getPreviousBalance() {
+		return prevBalance;
+	}
+
+	@Override
+	public void sendAmount(long amount, long address) {
+		amount = Math.min(amount, getCurrentBalance());
+		if (amount <= 0)
+			return;
+		pendingSent += amount;
+		emulator.send(this.address, emulator.getAddress(address), amount);
+	}
+
+	@Override
+	public void sendMessage(long[] message, long address) {
+		emulator.send(this.address, emulator.getAddress(address), 0,
+				Register.newInstance(message[0], message[1], message[2], message[3]));
+	}
+}
@@ -0,0 +1,246 @@
+package bt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append only binary log of the emulated block-chain.
+ *
+ * Every forged block is written as its transactions followed by the block
+ * itself, all as fixed size little endian records, so the log can be read back
+ * by position with {@link Reader} without building any objects.
+ *
+ * Transaction record: kind, type, id, block height, timestamp, sender id,
+ * receiver id, amount and the 4 longs of the message. Contract creations have
+ * no message on the log.
+ *
+ * Block record: kind, height, number of transactions and the 4 longs of the
+ * hash.
+ *
+ * @author jjos
+ */
+public class ChainLog implements Closeable {
+
+	public static final int RECORD_SIZE = 96;
+
+	public static final byte RECORD_TX = 1;
+	public static final byte RECORD_BLOCK = 2;
+
+	static final int MAGIC = 0x4154434c; // ATCL
+	static final int VERSION = 1;
+	/** The header takes one record, so records stay aligned */
+	static final int HEADER_SIZE = RECORD_SIZE;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 256).order(ByteOrder.LITTLE_ENDIAN);
+
+	private ChainLog(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Creates a new log on the given file, replacing any previous contents.
+	 */
+	public static ChainLog create(File file) throws IOException {
+		ChainLog log = new ChainLog(FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+		log.buffer.putInt(MAGIC);
+		log.buffer.putInt(VERSION);
+		log.buffer.putInt(RECORD_SIZE);
+		log.buffer.position(HEADER_SIZE);
+		log.flush();
+		return log;
+	}
+
+	/**
+	 * Appends the given forged block and its transactions.
+	 */
+	public void append(Block block) throws IOException {
+		for (Transaction tx : block.txs) {
+			ByteBuffer b = next();
+			int pos = b.position();
+			b.put(RECORD_TX);
+			b.put(tx.type);
+			b.position(pos + 8);
+			b.putLong(tx.id);
+			b.putLong(block.height);
+			b.putLong(tx.ts == null ? 0L : tx.ts.value);
+			b.putLong(tx.sender == null ? 0L : tx.sender.id);
+			b.putLong(tx.receiver == null ? 0L : tx.receiver.id);
+			b.putLong(tx.amount);
+			for (int i = 0; i < 4; i++)
+				b.putLong(tx.msg == null ? 0L : tx.msg.value[i]);
+			b.position(pos + RECORD_SIZE);
+		}
+
+		ByteBuffer b = next();
+		int pos = b.position();
+		b.put(RECORD_BLOCK);
+		b.position(pos + 8);
+		b.putLong(block.height);
+		b.putLong(block.txs.size());
+		for (int i = 0; i < 4; i++)
+			b.putLong(block.hash.value[i]);
+		b.position(pos + RECORD_SIZE);
+		flush();
+	}
+
+	/**
+	 * @return the buffer with room for a new zeroed record
+	 */
+	private ByteBuffer next() throws IOException {
+		if (buffer.remaining() < RECORD_SIZE)
+			flush();
+		int pos = buffer.position();
+		for (int i = 0; i < RECORD_SIZE; i += 8)
+			buffer.putLong(pos + i, 0L);
+		return buffer;
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Opens the given log for reading.
+	 */
+	public static Reader open(File file) throws IOException {
+		return new Reader(file);
+	}
+
+	/**
+	 * Reads a log by record position, straight from the memory mapped file.
+	 */
+	public static class Reader implements Closeable {
+
+		/** Records per mapped segment, each segment below 2GB */
+		static final int SEGMENT_RECORDS = (1 << 30) / RECORD_SIZE;
+
+		private final FileChannel channel;
+		private final MappedByteBuffer[] segments;
+		private final long size;
+
+		Reader(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			long length = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0)
+				;
+			if (length < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+					|| header.getInt(8) != RECORD_SIZE) {
+				channel.close();
+				throw new IOException("Not a chain log: " + file);
+			}
+
+			// a partial record at the end, if any, is ignored
+			size = (length - HEADER_SIZE) / RECORD_SIZE;
+			segments = new MappedByteBuffer[(int) ((size + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long) i * SEGMENT_RECORDS;
+				long records = Math.min(SEGMENT_RECORDS, size - start);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start * RECORD_SIZE,
+						records * RECORD_SIZE);
+				segments[i].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+
+		/**
+		 * @return the number of records, transactions and blocks
+		 */
+		public long size() {
+			return size;
+		}
+
+		private ByteBuffer segment(long record) {
+			if (record < 0 || record >= size)
+				throw new IndexOutOfBoundsException("Record: " + record + ", Size: " + size);
+			return segments[(int) (record / SEGMENT_RECORDS)];
+		}
+
+		private static int offset(long record) {
+			return (int) (record % SEGMENT_RECORDS) * RECORD_SIZE;
+		}
+
+		private long getLong(long record, int pos) {
+			return segment(record).getLong(offset(record) + pos);
+		}
+
+		/**
+		 * @return {@link ChainLog#RECORD_TX} or {@link ChainLog#RECORD_BLOCK}
+		 */
+		public byte getKind(long record) {
+			return segment(record).get(offset(record));
+		}
+
+		public boolean isBlock(long record) {
+			return getKind(record) == RECORD_BLOCK;
+		}
+
+		/**
+		 * @return the block height, for transactions the height of their block
+		 */
+		public long getHeight(long record) {
+			return getLong(record, isBlock(record) ? 8 : 16);
+		}
+
+		/**
+		 * @return the number of transactions of a block record
+		 */
+		public long getTxCount(long record) {
+			return getLong(record, 16);
+		}
+
+		/**
+		 * Copies the 4 longs of a block hash or a transaction message into the
+		 * given array.
+		 */
+		public void getValue(long record, long[] dest) {
+			int pos = isBlock(record) ? 24 : 56;
+			for (int i = 0; i < 4; i++)
+				dest[i] = getLong(record, pos + i * 8);
+		}
+
+		public byte getTxType(long record) {
+			return segment(record).get(offset(record) + 1);
+		}
+
+		public long getTxId(long record) {
+			return getLong(record, 8);
+		}
+
+		public long getTxTimestamp(long record) {
+			return getLong(record, 24);
+		}
+
+		public long getTxSender(long record) {
+			return getLong(record, 32);
+		}
+
+		public long getTxReceiver(long record) {
+			return getLong(record, 40);
+		}
+
+		public long getTxAmount(long record) {
+			return getLong(record, 48);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
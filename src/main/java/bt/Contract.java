@@ -1,14 +1,7 @@
 package bt;
 
 import java.lang.reflect.Field;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.Semaphore;
 
-import signumj.crypto.SignumCrypto;
-import signumj.entity.SignumID;
 
 /**
  * The BlockTalk smart contract abstract class.
@@ -31,6 +24,8 @@ public abstract class Contract {
 	public final static long FEE_QUANT = 735000L;
 	public final static long STEP_FEE = FEE_QUANT / 10L; // After AT2 fork, othewise ONE_BURST/10
 
+	/** The emulated block-chain this contract lives on */
+	Emulator emulator;
 	Address address;
 	Address creator;
 	Timestamp creation;
@@ -38,14 +33,13 @@ public abstract class Contract {
 	Transaction currentTx;
 	long activationFee;
 
-	// Thread stuff to emulate sleep functions
-	Semaphore semaphore = new Semaphore(1);
-	boolean running;
+	// Emulation of the sleep functions, see Scheduler
+	Scheduler.Fiber fiber;
 	Timestamp sleepUntil;
 
 	protected Contract() {
-		Emulator emu = Emulator.getInstance();
-		setInitialVars(emu.curTx, new Timestamp(emu.getCurrentBlock().getHeight(), 0));
+		emulator = Emulator.current();
+		setInitialVars(emulator.curTx, new Timestamp(emulator.getCurrentBlock().getHeight(), 0));
 	}
 
 	/**
@@ -55,7 +49,7 @@ public abstract class Contract {
 	 * @return
 	 */
 	protected Address parseAddress(String rs) {
-		return Emulator.getInstance().getAddress(rs);
+		return emulator.getAddress(rs);
 	}
 	
 	/**
@@ -64,7 +58,7 @@ public abstract class Contract {
 	 * @return the address
 	 */
 	protected Address getAddress(long id) {
-		return Emulator.getInstance().getAddress(SignumCrypto.getInstance().rsEncode(SignumID.fromLong(id)));
+		return emulator.getAddress(id);
 	}
 
 	/**
@@ -86,7 +80,7 @@ public abstract class Contract {
 	 * @param receiver
 	 */
 	protected void sendAmount(long amount, Address receiver) {
-		Emulator.getInstance().send(address, receiver, amount);
+		emulator.send(address, receiver, amount);
 	}
 
 	/**
@@ -101,7 +95,7 @@ public abstract class Contract {
 	 * @param receiver the address
 	 */
 	protected void sendMessage(String message, Address receiver) {
-		Emulator.getInstance().send(address, receiver, 0, message);
+		emulator.send(address, receiver, 0, message);
 	}
 
 	/**
@@ -115,7 +109,7 @@ public abstract class Contract {
 	 * @param receiver the address
 	 */
 	protected void sendMessage(Register message, Address receiver) {
-		Emulator.getInstance().send(address, receiver, 0, message);
+		emulator.send(address, receiver, 0, message);
 	}
 	
 	/**
@@ -129,7 +123,7 @@ public abstract class Contract {
 	 * @param receiver the address
 	 */
 	protected void sendMessage(long message, Address receiver) {
-		Emulator.getInstance().send(address, receiver, 0, Register.newInstance(message, 0, 0, 0));
+		emulator.send(address, receiver, 0, Register.newInstance(message, 0, 0, 0));
 	}
 	
 	/**
@@ -144,7 +138,7 @@ public abstract class Contract {
 	 * @param receiver the address
 	 */
 	protected void sendMessage(long message, long message2, Address receiver) {
-		Emulator.getInstance().send(address, receiver, 0, Register.newInstance(message, message2, 0, 0));
+		emulator.send(address, receiver, 0, Register.newInstance(message, message2, 0, 0));
 	}
 
 	/**
@@ -177,7 +171,7 @@ public abstract class Contract {
 	 * @return
 	 */
 	protected Transaction getTxAfterTimestamp(Timestamp ts) {
-		return Emulator.getInstance().getTxAfter(address, ts);
+		return emulator.getTxAfter(address, ts);
 	}
 
 	/**
@@ -212,35 +206,35 @@ public abstract class Contract {
 	 * @return the block hash of the previous block (part 1 of 4)
 	 */
 	protected Register getPrevBlockHash() {
-		return Emulator.getInstance().getPrevBlock().hash;
+		return emulator.getPrevBlock().hash;
 	}
 
 	/**
 	 * @return the first part of the previous block hash
 	 */
 	protected long getPrevBlockHash1() {
-		return Emulator.getInstance().getPrevBlock().hash.getValue1();
+		return emulator.getPrevBlock().hash.getValue1();
 	}
 
 	/**
 	 * @return the timestamp of the previous block
 	 */
 	protected Timestamp getPrevBlockTimestamp() {
-		return new Timestamp(Emulator.getInstance().getPrevBlock().getHeight(), 0);
+		return new Timestamp(emulator.getPrevBlock().getHeight(), 0);
 	}
 
 	/**
 	 * @return the timestamp of the block being processed
 	 */
 	protected Timestamp getBlockTimestamp() {
-		return new Timestamp(Emulator.getInstance().getCurrentBlock().getHeight(), 0);
+		return new Timestamp(emulator.getCurrentBlock().getHeight(), 0);
 	}
 	
 	/**
 	 * @return the timestamp of the block being processed
 	 */
 	protected long getBlockHeight() {
-		return Emulator.getInstance().getCurrentBlock().getHeight();
+		return emulator.getCurrentBlock().getHeight();
 	}
 
 	/**
@@ -267,29 +261,20 @@ public abstract class Contract {
 	@EmulatorWarning
 	public static Register performSHA256_(Register input) {
 		Register ret = new Register();
-
-		ByteBuffer b = ByteBuffer.allocate(32);
-		b.order(ByteOrder.LITTLE_ENDIAN);
-
-		for (int i = 0; i < 4; i++) {
-			b.putLong(input.value[i]);
-		}
-
-		try {
-			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-			ByteBuffer shab = ByteBuffer.wrap(sha256.digest(b.array()));
-			shab.order(ByteOrder.LITTLE_ENDIAN);
-
-			for (int i = 0; i < 4; i++) {
-				ret.value[i] = shab.getLong(i * 8);
-			}
-		} catch (NoSuchAlgorithmException e) {
-			// not expected to reach that point
-			e.printStackTrace();
-		}
+		performSHA256_(input, ret);
 		return ret;
 	}
 
+	/**
+	 * Hashes the given input into the given output register, without allocating.
+	 * 
+	 * Input and output can be the same register.
+	 */
+	@EmulatorWarning
+	public static void performSHA256_(Register input, Register output) {
+		Sha256.get().hash(input.value, output.value);
+	}
+
 	/**
 	 * @return a SHA256 hash of the given input
 	 */
@@ -304,12 +289,13 @@ public abstract class Contract {
 	 * @return the first 64 bits SHA256 hash of the given input
 	 */
 	protected long performSHA256_64(long input1, long input2) {
-		Register input = new Register();
-		input.value[0] = input1;
-		input.value[1] = input2;
+		Sha256 sha256 = Sha256.get();
+		long[] input = sha256.result;
+		input[0] = input1;
+		input[1] = input2;
+		input[2] = input[3] = 0;
 
-		Register ret = performSHA256_(input);
-		return ret.getValue1();
+		return sha256.hash(input)[0];
 	}
 
 	/**
@@ -324,18 +310,20 @@ public abstract class Contract {
 	 * Sleeps for the given number of blocks.
 	 * 
 	 * @param nblocks number of blocks to sleep
+	 * @throws IllegalStateException if not running on the emulator scheduler
+	 *                               fiber of this contract
 	 */
 	protected void sleep(long nblocks) {
 		if(nblocks <= 0)
 			sleepUntil = null;
 		else {
-			sleepUntil = new Timestamp(Emulator.getInstance().getCurrentBlock().height + nblocks, 0);
+			if (!Scheduler.inFiber())
+				throw new IllegalStateException("Contract " + address + " cannot sleep outside its scheduler fiber");
+			sleepUntil = new Timestamp(emulator.getCurrentBlock().height + nblocks, 0);
 			address.setSleeping(true);
-			try {
-				semaphore.acquire();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			emulator.addSleeper(address, emulator.getCurrentBlock().height + nblocks);
+			// resumed by the emulator when the time comes
+			emulator.scheduler.suspend();
 		}
 		address.setSleeping(false);
 		sleepUntil = null;
@@ -359,15 +347,6 @@ public abstract class Contract {
 		this.creation = creation;
 		this.activationFee = tx.getAmount();
 		this.address.contract = this;
-		
-		// we acquire the semaphore in the creation process, it is released
-		// when finished by the emulator
-		try {
-			running = true;
-			semaphore.acquire();
-		} catch (InterruptedException e) {
-			running =false;
-		}
 	}
 
 	void setCurrentTx(Transaction current) {
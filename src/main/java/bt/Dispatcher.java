@@ -0,0 +1,227 @@
+package bt;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import signumj.crypto.SignumCrypto;
+
+/**
+ * Method dispatch table of a Java contract class, for the {@link Emulator}.
+ *
+ * Every public method callable on-chain (up to 3 arguments of the types
+ * supported by the compiler) gets a {@link MethodHandle} taking the contract
+ * and 3 longs, the arguments as they are encoded on a message. Methods are
+ * found by their hash, the same as
+ * {@link bt.compiler.Compiler#getMethodSignature(bt.compiler.Method)}, so a
+ * message is routed just like the compiled contract would do.
+ *
+ * Tables are built once per class and shared by all emulators.
+ *
+ * @author jjos
+ */
+class Dispatcher {
+
+	private static final ClassValue<Dispatcher> dispatchers = new ClassValue<Dispatcher>() {
+		@Override
+		protected Dispatcher computeValue(Class<?> type) {
+			return new Dispatcher(type);
+		}
+	};
+
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(void.class, Contract.class, long.class,
+			long.class, long.class);
+
+	private static final MethodHandle TO_INT, TO_BOOLEAN, TO_TIMESTAMP, TO_ADDRESS, TO_TRANSACTION;
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			TO_INT = lookup.findStatic(Dispatcher.class, "toInt", MethodType.methodType(int.class, long.class));
+			TO_BOOLEAN = lookup.findStatic(Dispatcher.class, "toBoolean",
+					MethodType.methodType(boolean.class, long.class));
+			TO_TIMESTAMP = lookup.findStatic(Dispatcher.class, "toTimestamp",
+					MethodType.methodType(Timestamp.class, long.class));
+			TO_ADDRESS = lookup.findStatic(Dispatcher.class, "toAddress",
+					MethodType.methodType(Address.class, Contract.class, long.class));
+			TO_TRANSACTION = lookup.findStatic(Dispatcher.class, "toTransaction",
+					MethodType.methodType(Transaction.class, Contract.class, long.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** Method hashes, sorted */
+	private final long[] hashes;
+	/** The methods and invokers in the same order as the hashes */
+	private final Method[] methods;
+	private final MethodHandle[] invokers;
+
+	/**
+	 * @return the dispatch table of the given contract class
+	 */
+	static Dispatcher get(Class<?> type) {
+		return dispatchers.get(type);
+	}
+
+	private Dispatcher(Class<?> type) {
+		ArrayList<Method> list = new ArrayList<>();
+		for (Method m : type.getMethods()) {
+			if (Modifier.isStatic(m.getModifiers()) || m.getDeclaringClass() == Contract.class
+					|| m.getDeclaringClass() == Object.class || m.getParameterCount() > 3)
+				continue;
+			boolean supported = true;
+			for (Class<?> p : m.getParameterTypes())
+				supported &= p == long.class || p == int.class || p == boolean.class || p == Address.class
+						|| p == Transaction.class || p == Timestamp.class;
+			if (supported)
+				list.add(m);
+		}
+
+		long[] unsorted = new long[list.size()];
+		Integer[] order = new Integer[list.size()];
+		for (int i = 0; i < unsorted.length; i++) {
+			unsorted[i] = hash(list.get(i));
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(unsorted[a], unsorted[b]));
+
+		hashes = new long[order.length];
+		methods = new Method[order.length];
+		invokers = new MethodHandle[order.length];
+		for (int i = 0; i < order.length; i++) {
+			hashes[i] = unsorted[order[i]];
+			methods[i] = list.get(order[i]);
+			invokers[i] = invoker(methods[i]);
+		}
+	}
+
+	/**
+	 * @return the method hash as calculated by the compiler, from the name and
+	 *         descriptor
+	 */
+	static long hash(Method m) {
+		Class<?>[] params = m.getParameterTypes();
+		String desc = MethodType.methodType(m.getReturnType(), params).toMethodDescriptorString();
+		SignumCrypto crypto = SignumCrypto.getInstance();
+		return crypto.hashToId(crypto.getSha256().digest((m.getName() + desc).getBytes(StandardCharsets.UTF_8)))
+				.getSignedLongId();
+	}
+
+	/**
+	 * Adapts the given method to {@link #INVOKER_TYPE}, converting each long
+	 * argument to the parameter type and ignoring the ones not used.
+	 */
+	private static MethodHandle invoker(Method m) {
+		MethodHandle h;
+		try {
+			m.setAccessible(true);
+			h = MethodHandles.lookup().unreflect(m);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			throw new IllegalStateException("Cannot dispatch to " + m, e);
+		}
+		h = h.asType(h.type().changeParameterType(0, Contract.class).changeReturnType(void.class));
+
+		// from the last, so the positions before are kept
+		Class<?>[] params = m.getParameterTypes();
+		for (int i = params.length - 1; i >= 0; i--) {
+			int pos = i + 1;
+			Class<?> p = params[i];
+			if (p == int.class)
+				h = MethodHandles.filterArguments(h, pos, TO_INT);
+			else if (p == boolean.class)
+				h = MethodHandles.filterArguments(h, pos, TO_BOOLEAN);
+			else if (p == Timestamp.class)
+				h = MethodHandles.filterArguments(h, pos, TO_TIMESTAMP);
+			else if (p == Address.class)
+				h = MethodHandles.collectArguments(h, pos, TO_ADDRESS);
+			else if (p == Transaction.class)
+				h = MethodHandles.collectArguments(h, pos, TO_TRANSACTION);
+		}
+
+		// now the contract (maybe repeated) and the longs, the missing ones ignored
+		int longs = 0;
+		for (Class<?> p : h.type().parameterList())
+			if (p == long.class)
+				longs++;
+		Class<?>[] unused = new Class<?>[3 - longs];
+		Arrays.fill(unused, long.class);
+		h = MethodHandles.dropArguments(h, h.type().parameterCount(), unused);
+
+		int[] reorder = new int[h.type().parameterCount()];
+		for (int i = 0, arg = 1; i < reorder.length; i++)
+			reorder[i] = h.type().parameterType(i) == long.class ? arg++ : 0;
+		return MethodHandles.permuteArguments(h, INVOKER_TYPE, reorder);
+	}
+
+	/**
+	 * @return the position of the method with the given hash, negative if not
+	 *         found
+	 */
+	int find(long hash) {
+		return Arrays.binarySearch(hashes, hash);
+	}
+
+	/**
+	 * @return the hash of the given method, from the table of its class if
+	 *         there
+	 */
+	static long methodHash(Method m) {
+		Dispatcher d = get(m.getDeclaringClass());
+		for (int i = 0; i < d.methods.length; i++)
+			if (d.methods[i].equals(m))
+				return d.hashes[i];
+		return hash(m);
+	}
+
+	/**
+	 * Calls the method at the given position with arguments encoded as longs.
+	 */
+	void invoke(int index, Contract c, long arg1, long arg2, long arg3) throws Throwable {
+		invokers[index].invokeExact(c, arg1, arg2, arg3);
+	}
+
+	/**
+	 * @return the argument as encoded on a message, see
+	 *         {@link BT#callMethodMessage(bt.compiler.Method, Object...)}
+	 */
+	static long encode(Object arg) {
+		if (arg instanceof Boolean)
+			return ((Boolean) arg) ? 1 : 0;
+		if (arg instanceof Integer)
+			return (Integer) arg;
+		if (arg instanceof Long)
+			return (Long) arg;
+		if (arg instanceof Address)
+			return ((Address) arg).id;
+		if (arg instanceof Transaction)
+			return ((Transaction) arg).id;
+		if (arg instanceof Timestamp)
+			return ((Timestamp) arg).value;
+		return 0L;
+	}
+
+	static int toInt(long v) {
+		return (int) v;
+	}
+
+	static boolean toBoolean(long v) {
+		return v != 0L;
+	}
+
+	static Timestamp toTimestamp(long v) {
+		return new Timestamp(v >>> 32, v & 0xffffffffL);
+	}
+
+	static Address toAddress(Contract c, long id) {
+		return id == 0L ? null : c.emulator.getAddress(id);
+	}
+
+	static Transaction toTransaction(Contract c, long id) {
+		return c.emulator.getTx(id);
+	}
+}
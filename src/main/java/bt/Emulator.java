@@ -1,23 +1,82 @@
 package bt;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashSet;
-
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import bt.compiler.Compiler;
+import bt.vm.Machine;
+import io.reactivex.Flowable;
+import io.reactivex.processors.PublishProcessor;
+import signumj.crypto.SignumCrypto;
 import signumj.entity.SignumAddress;
+import signumj.entity.SignumID;
 
 
 /**
  * Emulates the blockchain for debugging/testing purposes.
  * 
+ * Every instance is an independent block-chain, with its own addresses,
+ * transactions and contracts. Each contract is bound to the emulator that
+ * created it. An instance should be used by one thread at a time, but different
+ * instances can run concurrently. {@link #getInstance()} returns a default
+ * shared instance, as used by the samples and the emulator window.
+ * 
+ * An emulator can be forked with {@link #fork()}, for what-if simulations. The
+ * chain history is shared with the fork, while balances and contract states are
+ * copied, so both can continue independently. Addresses of a fork are
+ * different objects, get them from the fork by name or id (they are equal to
+ * the original ones).
+ * 
+ * Block hashes come from a generator seeded on construction, so a run with the
+ * same seed and transactions is reproducible. Optionally, they can be derived
+ * from the previous block and its transactions instead, see
+ * {@link #setChainedHashes(boolean)}.
+ * 
+ * Changes are published as {@link Flowable} streams: blocks forged,
+ * transactions included, contracts activated or sleeping and balance changes,
+ * so consumers can follow the deltas instead of reading the lists again. Events
+ * are emitted synchronously while forging, a subscriber falling behind has its
+ * own buffer, and only when there are subscribers.
+ * 
+ * Java contracts that may sleep run on their own threads, an emulator (or fork)
+ * no longer used should be {@link #close()}d to end them.
+ * 
  * @author jjos
  *
  */
-public class Emulator {
+public class Emulator implements AutoCloseable {
+
+	/** The emulator creating a contract on the current thread, if any */
+	static final ThreadLocal<Emulator> context = new ThreadLocal<>();
+
+	private static final SplitMix64 seeds = new SplitMix64(System.nanoTime());
 
 	static final Emulator instance = new Emulator();
 
 	Block genesis;
 	Transaction curTx;
+	Scheduler scheduler;
+	/** A snapshot, cannot be changed */
+	boolean frozen;
+	boolean closed;
+
+	long seed;
+	SplitMix64 random;
+	/** Block hash as SHA-256 of the previous block hash and transactions */
+	boolean chainedHashes;
+	MessageDigest sha256;
+	ChainLog chainLog;
 
 	/**
 	 * Block being forged, also representing the mempool.
@@ -25,15 +84,56 @@ public class Emulator {
 	Block currentBlock;
 	Block prevBlock;
 
-	ArrayList<Block> blocks = new ArrayList<Block>();
-	ArrayList<Transaction> txs = new ArrayList<Transaction>();
+	ForkableList<Block> blocks = new ForkableList<>();
+	List<Transaction> txs = new ForkableList<>();
+	/** The same as txs with compact history, null otherwise */
+	TxStore compactTxs;
 	ArrayList<Address> addresses = new ArrayList<Address>();
 
-	public ArrayList<Block> getBlocks() {
+	// Indexes for the addresses above
+	HashMap<String, Address> addressesByRs = new HashMap<>();
+	HashMap<Long, Address> addressesById = new HashMap<>();
+	LinkedHashSet<Address> contracts = new LinkedHashSet<>();
+
+	/**
+	 * A contract waiting for a given block height, ordered by height and then by
+	 * arrival so that the wake up order is deterministic.
+	 */
+	static class Sleeper implements Comparable<Sleeper> {
+		final long height;
+		final long seq;
+		final Address address;
+
+		Sleeper(long height, long seq, Address address) {
+			this.height = height;
+			this.seq = seq;
+			this.address = address;
+		}
+
+		@Override
+		public int compareTo(Sleeper o) {
+			if (height != o.height)
+				return Long.compare(height, o.height);
+			return Long.compare(seq, o.seq);
+		}
+	}
+
+	PriorityQueue<Sleeper> sleepers = new PriorityQueue<>();
+	PriorityQueue<Sleeper> bytecodeSleepers = new PriorityQueue<>();
+	long sleeperSeq;
+
+	// Event streams, forks start with their own
+	final PublishProcessor<Block> blockEvents = PublishProcessor.create();
+	final PublishProcessor<Transaction> txEvents = PublishProcessor.create();
+	final PublishProcessor<EmulatorEvent> activationEvents = PublishProcessor.create();
+	final PublishProcessor<EmulatorEvent> sleepEvents = PublishProcessor.create();
+	final PublishProcessor<EmulatorEvent> balanceEvents = PublishProcessor.create();
+
+	public List<Block> getBlocks() {
 		return blocks;
 	}
 
-	public ArrayList<Transaction> getTxs() {
+	public List<Transaction> getTxs() {
 		return txs;
 	}
 
@@ -41,8 +141,48 @@ public class Emulator {
 		return addresses;
 	}
 
-	Emulator() {
+	/**
+	 * @return the addresses holding contracts, in creation order
+	 */
+	public LinkedHashSet<Address> getContracts() {
+		return contracts;
+	}
+
+	/**
+	 * @return the cost of every run of the compiled contract on the given
+	 *         address, in block order
+	 */
+	public ArrayList<ActivationCost> getActivationCosts(Address contract) {
+		return local(contract).activationCosts;
+	}
+
+	/**
+	 * @return the total fees paid by the compiled contract on the given address
+	 */
+	public long getFeesPaid(Address contract) {
+		long fees = 0;
+		for (ActivationCost c : local(contract).activationCosts)
+			fees += c.fee;
+		return fees;
+	}
+
+	/**
+	 * Creates a new emulated block-chain, independent of all others, with a
+	 * random seed for the block hashes.
+	 */
+	public Emulator() {
+		this(newSeed());
+	}
+
+	/**
+	 * Creates a new emulated block-chain, independent of all others, with the
+	 * given seed for the block hashes.
+	 */
+	public Emulator(long seed) {
+		setSeed(seed);
+		scheduler = new Scheduler(this);
 		currentBlock = genesis = new Block(null);
+		setHash(currentBlock);
 		try {
 			forgeBlock();
 		} catch (Exception e) {
@@ -51,12 +191,225 @@ public class Emulator {
 		}
 	}
 
-	public Address findAddress(String rs) {
-		for (Address a : addresses) {
-			if (a.rsAddress.equals(rs))
-				return a;
+	private Emulator(Emulator other, boolean frozen) {
+		this.frozen = frozen;
+		seed = other.seed;
+		random = new SplitMix64(other.random);
+		chainedHashes = other.chainedHashes;
+		scheduler = new Scheduler(this, other.scheduler);
+		genesis = other.genesis;
+		prevBlock = other.prevBlock;
+		blocks = other.blocks.fork();
+		txs = ((ForkableList<Transaction>) other.txs).fork();
+		sleeperSeq = other.sleeperSeq;
+
+		for (Address ad : other.addresses)
+			addAddress(new Address(ad));
+		for (Map.Entry<String, Address> e : other.addressesByRs.entrySet())
+			addressesByRs.putIfAbsent(e.getKey(), local(e.getValue()));
+
+		// the block being forged, pending transactions are not final so are copied
+		currentBlock = other.currentBlock.copy();
+		for (Transaction tx : other.currentBlock.txs) {
+			Transaction t = new Transaction(tx, local(tx.sender), local(tx.receiver), currentBlock);
+			currentBlock.txs.add(t);
+			txs.set((int) (t.id - 1), t);
 		}
-		return null;
+
+		Timestamp ts = new Timestamp(currentBlock.height, 0);
+		for (Address ad : other.contracts) {
+			Address copy = local(ad);
+			if (ad.bytecode != null)
+				new BytecodeContract(this, ad.bytecode, copy, local(ad.bytecode.creator));
+			if (ad.contract != null) {
+				curTx = new Transaction(local(ad.contract.creator), copy, 0, Transaction.TYPE_AT_CREATE, ts,
+						(Register) null);
+				scheduler.copy(ad.contract);
+			}
+			contracts.add(copy);
+		}
+		curTx = null;
+
+		for (Sleeper sl : other.sleepers)
+			sleepers.add(new Sleeper(sl.height, sl.seq, local(sl.address)));
+		for (Sleeper sl : other.bytecodeSleepers)
+			bytecodeSleepers.add(new Sleeper(sl.height, sl.seq, local(sl.address)));
+	}
+
+	private static long newSeed() {
+		synchronized (seeds) {
+			return seeds.nextLong();
+		}
+	}
+
+	/**
+	 * @return the seed of the block hashes, as given on construction or by
+	 *         {@link #setSeed(long)}
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Restarts the block hash generator with the given seed, starting from the
+	 * next block. Forks share the generator state of the original, so this gives
+	 * each fork its own sequence of hashes.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		random = new SplitMix64(seed);
+	}
+
+	/**
+	 * Sets if block hashes are derived by chaining SHA-256 over the previous
+	 * block hash and its transactions instead of using the seeded generator,
+	 * starting from the next block.
+	 */
+	public void setChainedHashes(boolean chainedHashes) {
+		this.chainedHashes = chainedHashes;
+	}
+
+	public boolean isChainedHashes() {
+		return chainedHashes;
+	}
+
+	private void setHash(Block b) {
+		long[] hash = b.hash.value;
+		if (!chainedHashes || b.prev == null) {
+			for (int i = 0; i < hash.length; i++)
+				hash[i] = random.nextLong();
+			return;
+		}
+
+		if (sha256 == null) {
+			try {
+				sha256 = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				// not expected to reach that point
+				throw new IllegalStateException(e);
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(8 * 8).order(ByteOrder.LITTLE_ENDIAN);
+		for (long v : b.prev.hash.value)
+			buffer.putLong(v);
+		sha256.update(buffer.array(), 0, 32);
+		for (Transaction tx : b.prev.txs) {
+			buffer.clear();
+			buffer.putLong(tx.id);
+			buffer.putLong(tx.sender == null ? 0L : tx.sender.id);
+			buffer.putLong(tx.receiver == null ? 0L : tx.receiver.id);
+			buffer.putLong(tx.amount);
+			Register msg = tx.msg;
+			for (int i = 0; i < 4; i++)
+				buffer.putLong(msg == null ? 0L : msg.value[i]);
+			sha256.update(buffer.array());
+		}
+		ByteBuffer digest = ByteBuffer.wrap(sha256.digest()).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < hash.length; i++)
+			hash[i] = digest.getLong(i * 8);
+	}
+
+	/**
+	 * Sets a log to append every block forged from now on, null for no log.
+	 * Forks do not inherit the log.
+	 */
+	public void setChainLog(ChainLog chainLog) {
+		this.chainLog = chainLog;
+	}
+
+	/**
+	 * Keeps the forged transactions in primitive arrays instead of objects, for
+	 * large simulations. {@link Transaction} objects are then created on every
+	 * access, {@link Block} objects do not keep their transactions and the
+	 * emulator cannot be forked.
+	 * 
+	 * @throws IllegalStateException if there are transactions already
+	 */
+	public void setCompactHistory() {
+		if (!txs.isEmpty())
+			throw new IllegalStateException("Compact history should be set before the first transaction");
+		compactTxs = new TxStore(this);
+		txs = compactTxs;
+	}
+
+	/**
+	 * @return true if the forged transactions are kept in primitive arrays
+	 */
+	public boolean isCompactHistory() {
+		return compactTxs != null;
+	}
+
+	/**
+	 * Forks this emulator, the new one starts with the same chain, balances and
+	 * contract states, but they change independently.
+	 * 
+	 * The chain history is shared, so forking costs the number of addresses and
+	 * contracts, not the number of blocks or transactions.
+	 * 
+	 * @return the new emulator
+	 * @throws IllegalStateException if a Java contract is sleeping, its execution
+	 *                               state cannot be copied (bytecode contracts
+	 *                               can be forked at any time), or with compact
+	 *                               history
+	 */
+	public Emulator fork() {
+		if (compactTxs != null)
+			throw new IllegalStateException("Cannot fork an emulator with compact history");
+		for (Address ad : contracts) {
+			if (ad.contract != null && ad.contract.sleepUntil != null)
+				throw new IllegalStateException("Cannot fork with the Java contract " + ad + " sleeping");
+		}
+		return new Emulator(this, false);
+	}
+
+	/**
+	 * @return a read only copy of the current state of this emulator, to be
+	 *         {@link #fork()}ed later
+	 * @throws IllegalStateException if a Java contract is sleeping
+	 */
+	public Emulator snapshot() {
+		Emulator ret = fork();
+		ret.frozen = true;
+		return ret;
+	}
+
+	/**
+	 * @return true if this is a snapshot, that can only be forked
+	 */
+	public boolean isSnapshot() {
+		return frozen;
+	}
+
+	private void checkFrozen() {
+		if (frozen)
+			throw new IllegalStateException("A snapshot cannot be changed, fork it first");
+		if (closed)
+			throw new IllegalStateException("A closed emulator cannot be changed");
+	}
+
+	/**
+	 * Ends the threads of the Java contracts of this emulator, sleeping ones
+	 * included. The state can still be read, but no more changes are allowed.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		scheduler.close();
+	}
+
+	/**
+	 * @return the address of this emulator with the same id as the given one,
+	 *         which may come from another fork
+	 */
+	Address local(Address ad) {
+		if (ad == null)
+			return null;
+		Address ret = addressesById.get(ad.id);
+		return ret != null ? ret : getAddress(ad.id);
+	}
+
+	public Address findAddress(String rs) {
+		return addressesByRs.get(rs);
 	}
 
 	public Address getAddress(String rs) {
@@ -69,18 +422,72 @@ public class Emulator {
 			SignumAddress ad = SignumAddress.fromRs(rs);
 			id = ad.getSignedLongId();
 		} catch (Exception e) {
-			// not a valid address, do nothing on the emulator
+			// not a valid address, derive an id from the name so it is still unique
+			SignumCrypto crypto = SignumCrypto.getInstance();
+			id = crypto.hashToId(crypto.getSha256().digest(rs.getBytes(StandardCharsets.UTF_8))).getSignedLongId();
+		}
+		ret = addressesById.get(id);
+		if (ret != null) {
+			// same account with a different prefix
+			addressesByRs.put(rs, ret);
+			return ret;
 		}
-		ret = new Address(id, 0, rs);
-		addresses.add(ret);
+		return addAddress(new Address(id, 0, rs));
+	}
 
-		return ret;
+	/**
+	 * @return the address for the given id, created if not yet known
+	 */
+	public Address getAddress(long id) {
+		Address ret = addressesById.get(id);
+		if (ret != null)
+			return ret;
+		return addAddress(new Address(id, 0, SignumCrypto.getInstance().rsEncode(SignumID.fromLong(id))));
 	}
 
+	private Address addAddress(Address ad) {
+		addresses.add(ad);
+		addressesByRs.put(ad.rsAddress, ad);
+		addressesById.put(ad.id, ad);
+		return ad;
+	}
+
+	/**
+	 * Registers a contract to wake up at the given block height.
+	 */
+	void addSleeper(Address ad, long height) {
+		Sleeper s = new Sleeper(height, sleeperSeq++, ad);
+		if (ad.bytecode != null)
+			bytecodeSleepers.add(s);
+		else
+			sleepers.add(s);
+	}
+
+	/**
+	 * @return the transaction with the given id or null if not found
+	 */
+	public Transaction getTx(long id) {
+		if (id < 1 || id > txs.size())
+			return null;
+		return txs.get((int) (id - 1));
+	}
+
+	/**
+	 * @return the default emulator instance
+	 */
 	public static Emulator getInstance() {
 		return instance;
 	}
 
+	/**
+	 * @return the emulator creating a contract on this thread, the default
+	 *         instance otherwise
+	 */
+	static Emulator current() {
+		Emulator emu = context.get();
+		return emu != null ? emu : instance;
+	}
+
 	public void send(Address from, Address to, long amount) {
 		send(from, to, amount, (String) null);
 	}
@@ -88,54 +495,149 @@ public class Emulator {
 	public void send(Address from, Address to, long amount, String message) {
 		Transaction t = new Transaction(from, to, amount, Transaction.TYPE_PAYMENT,
 				new Timestamp(currentBlock.height, currentBlock.txs.size()), message);
-		currentBlock.txs.add(t);
-		t.block = currentBlock;
-		txs.add(t);
+		addTx(t);
 	}
 
 	public void send(Address from, Address to, long amount, Register message) {
 		Transaction t = new Transaction(from, to, amount,
 				message.method != null ? Transaction.TYPE_METHOD_CALL : Transaction.TYPE_PAYMENT,
 				new Timestamp(currentBlock.height, currentBlock.txs.size()), message);
-		currentBlock.txs.add(t);
-		t.block = currentBlock;
-		txs.add(t);
+		addTx(t);
 	}
 
 	public void createConctract(Address from, Address to, Class<? extends Contract> contractClass, long actFee) {
 		Transaction t = new Transaction(from, to, actFee, Transaction.TYPE_AT_CREATE,
 				new Timestamp(currentBlock.height, currentBlock.txs.size()), contractClass.getName());
+		addTx(t);
+	}
+
+	/**
+	 * Creates a contract, optionally running the compiled bytecode instead of the
+	 * Java class.
+	 * 
+	 * @throws IOException if the contract class cannot be compiled
+	 */
+	public void createConctract(Address from, Address to, Class<? extends Contract> contractClass, long actFee,
+			boolean bytecode) throws IOException {
+		if (!bytecode) {
+			createConctract(from, to, contractClass, actFee);
+			return;
+		}
+		createConctract(from, to, BT.compileContract(contractClass), actFee);
+	}
+
+	/**
+	 * Creates a contract running the given compiled bytecode.
+	 */
+	public void createConctract(Address from, Address to, Compiler compiledContract, long actFee) {
+		Transaction t = new Transaction(from, to, actFee, Transaction.TYPE_AT_CREATE,
+				new Timestamp(currentBlock.height, currentBlock.txs.size()), compiledContract.getClassName());
+		t.compiledContract = compiledContract;
+		addTx(t);
+	}
+
+	private void addTx(Transaction t) {
+		checkFrozen();
+		t.sender = local(t.sender);
+		t.receiver = local(t.receiver);
 		currentBlock.txs.add(t);
 		t.block = currentBlock;
 		txs.add(t);
+		t.id = txs.size();
 	}
 	
 	public void airDrop(String address, long amount) {
-		Address to = getAddress(address);
-		to.balance += amount;
+		airDrop(getAddress(address), amount);
 	}
 
 	public void airDrop(Address to, long amount) {
+		checkFrozen();
+		to = local(to);
 		to.balance += amount;
+		balanceChanged(to, null, amount);
+	}
+
+	/**
+	 * @return the blocks forged from now on, after their contracts run (with
+	 *         compact history, the block transactions are only available while
+	 *         handling the event on the forging thread)
+	 */
+	public Flowable<Block> blockForged() {
+		return blockEvents.onBackpressureBuffer();
+	}
+
+	/**
+	 * @return the transactions included on blocks forged from now on
+	 */
+	public Flowable<Transaction> txIncluded() {
+		return txEvents.onBackpressureBuffer();
+	}
+
+	/**
+	 * @return the contracts run from now on, Java contracts once per transaction
+	 *         and compiled ones once per block
+	 */
+	public Flowable<EmulatorEvent> contractActivated() {
+		return activationEvents.onBackpressureBuffer();
+	}
+
+	/**
+	 * @return the contracts going to sleep from now on
+	 */
+	public Flowable<EmulatorEvent> contractSlept() {
+		return sleepEvents.onBackpressureBuffer();
+	}
+
+	/**
+	 * @return the balance changes from now on, by air drops, transactions
+	 *         included and activation fees
+	 */
+	public Flowable<EmulatorEvent> balanceChanged() {
+		return balanceEvents.onBackpressureBuffer();
+	}
+
+	private void contractActivated(Address contract, Transaction tx) {
+		if (activationEvents.hasSubscribers())
+			activationEvents.onNext(
+					new EmulatorEvent(EmulatorEvent.CONTRACT_ACTIVATED, contract, currentBlock.height, tx, 0L));
+	}
+
+	private void contractSlept(Address contract, long height) {
+		if (sleepEvents.hasSubscribers())
+			sleepEvents.onNext(
+					new EmulatorEvent(EmulatorEvent.CONTRACT_SLEPT, contract, currentBlock.height, null, height));
+	}
+
+	/**
+	 * Java contracts sleep from their own fiber, checked after running them.
+	 */
+	private void checkSlept(Contract c) {
+		if (c.sleepUntil != null)
+			contractSlept(c.address, c.sleepUntil.value >>> 32);
+	}
+
+	private void balanceChanged(Address address, Transaction tx, long amount) {
+		if (amount != 0 && balanceEvents.hasSubscribers())
+			balanceEvents.onNext(
+					new EmulatorEvent(EmulatorEvent.BALANCE_CHANGED, address, currentBlock.height, tx, amount));
 	}
 
 	public void forgeBlock() throws Exception {
+		checkFrozen();
 
 		// Transactions to postpone due to sleeping contracts
 		ArrayList<Transaction> pendTxs = new ArrayList<>();
 		Timestamp curBlockTs = new Timestamp(currentBlock.height, 0);
+		// Bytecode contracts to run after forging, in order
+		LinkedHashSet<BytecodeContract> bytecodeToRun = new LinkedHashSet<>();
 
 		// check for sleeping contracts
-		for(Address ad : addresses){
-			if(ad.contract==null)
-				continue;
-
-			Contract c = ad.contract;
-			// sleeping contract
-			if(c.sleepUntil!=null && c.sleepUntil.le(curBlockTs)) {
-				// release to resume execution
-				c.semaphore.release();
-				Thread.sleep(100);
+		while (!sleepers.isEmpty() && sleepers.peek().height <= currentBlock.height) {
+			Contract c = sleepers.poll().address.contract;
+			if (c.sleepUntil != null && c.sleepUntil.le(curBlockTs)) {
+				// resume execution
+				scheduler.resume(c);
+				checkSlept(c);
 			}
 		}
 
@@ -149,51 +651,49 @@ public class Emulator {
 				continue;
 			}
 
+			if (tx.type != Transaction.TYPE_AT_CREATE)
+				indexTx(tx);
+
 			if (tx.amount > 0) {
 				long amount = Math.min(tx.sender.balance, tx.amount);
 				tx.amount = amount;
 
 				tx.sender.balance -= amount;
 				tx.receiver.balance += amount;
+				balanceChanged(tx.sender, tx, -amount);
+				balanceChanged(tx.receiver, tx, amount);
 			}
-
-			if (tx.type == Transaction.TYPE_AT_CREATE) {
+			if (txEvents.hasSubscribers())
+				txEvents.onNext(tx);
+
+			if (tx.type == Transaction.TYPE_AT_CREATE && tx.compiledContract != null) {
+				// no thread needed, it will run after the block is forged
+				new BytecodeContract(this, tx.compiledContract, tx, new Timestamp(currentBlock.height, 0));
+				bytecodeToRun.add(tx.receiver.bytecode);
+				contracts.add(tx.receiver);
+			} else if (tx.type == Transaction.TYPE_AT_CREATE) {
 				// set the current creator variables
 				curTx = tx;
-				
-				Thread ct = new Thread() {
-					public void run() {
-						// check the message arguments to call a specific function
-						try {
-							Object ocontract = Class.forName(tx.msgString).getConstructor().newInstance();
-							if (ocontract instanceof Contract) {
-								Contract c = (Contract) ocontract;
-								c.running = false;
-								tx.receiver.setSleeping(false);
-							}
-						} catch (Exception ex) {
-							ex.printStackTrace();
-						}
-					}
-				};
-				
-				ct.start();
-				while(tx.receiver.contract == null && !tx.receiver.isSleeping()){
-					Thread.sleep(10);
-				}
-				if(!tx.receiver.isSleeping()) {
-					tx.receiver.contract.semaphore.release();
-					tx.receiver.contract.running = false;
-				}
+				scheduler.create(tx.msgString);
+				if (tx.receiver.contract != null)
+					contracts.add(tx.receiver);
 			}
 		}
 
+		// postponed transactions belong to the next block only
+		if (!pendTxs.isEmpty())
+			currentBlock.txs.removeAll(pendTxs);
 		blocks.add(currentBlock);
+		if (chainLog != null)
+			chainLog.append(currentBlock);
 		prevBlock = currentBlock;
 		currentBlock = new Block(prevBlock);
+		setHash(currentBlock);
 		currentBlock.txs.addAll(pendTxs);
+		for (Transaction tx : pendTxs)
+			tx.block = currentBlock;
 
-		HashSet<Contract> contractsExecuted = new HashSet<>();
+		LinkedHashSet<Contract> contractsExecuted = new LinkedHashSet<>();
 		// run all contracts, operations will be pending to be forged in the next block
 		for (Transaction tx : prevBlock.txs) {
 
@@ -206,67 +706,171 @@ public class Emulator {
 				// a contract received a message
 				c.setCurrentTx(tx);
 				contractsExecuted.add(c);
+				contractActivated(c.address, tx);
 
-				Thread ct = new Thread() {
-					public void run() {
-						// check the message arguments to call a specific function
-						boolean invoked = false;
-						try {
-							if (tx.type == Transaction.TYPE_METHOD_CALL) {
-								invoked = true;
-								if (tx.msg.args[0] == null)
-									tx.msg.method.invoke(c);
-								else if (tx.msg.args[1] == null)
-									tx.msg.method.invoke(c, tx.msg.args[0]);
-								else if (tx.msg.args[2] == null)
-									tx.msg.method.invoke(c, tx.msg.args[0], tx.msg.args[1]);
-								else
-									tx.msg.method.invoke(c, tx.msg.args[0], tx.msg.args[1], tx.msg.args[2]);
-							}
-						} catch (Exception ex) {
-							ex.printStackTrace();
-							invoked = false;
-						}
-						if (!invoked) // invoke the default method "txReceived"
-							c.txReceived();
-						c.running = false;
-					}
-				};
-
-				// Run the contract on a different thread so that we can emulate the sleep function.
-				// However, we always wait for it to finish one by one since there should be no
-				// parallel execution.
-				c.semaphore.acquire();
-				c.running = true;
-				ct.start();
-				while(c.running && c.sleepUntil==null){
-					Thread.sleep(10);
-				}
-				if(c.sleepUntil==null)
-					c.semaphore.release();
+				// Contracts run one by one, see the Scheduler for the sleep emulation
+				scheduler.run(c, () -> dispatch(c, tx));
+				checkSlept(c);
 			}
 		}
 		// run the block finish method on all contracts that received transactions
 		for(Contract c : contractsExecuted){
-			if(c.sleepUntil==null)
-				c.blockFinished();
+			if(c.sleepUntil==null) {
+				scheduler.run(c, c::blockFinished);
+				checkSlept(c);
+			}
+		}
+
+		// bytecode contracts waking up or continuing first, then the ones activated by transactions
+		LinkedHashSet<BytecodeContract> toRun = new LinkedHashSet<>();
+		while (!bytecodeSleepers.isEmpty() && bytecodeSleepers.peek().height <= currentBlock.height) {
+			BytecodeContract bc = bytecodeSleepers.poll().address.bytecode;
+			if (bc.isDue(currentBlock.height))
+				toRun.add(bc);
+		}
+		for (Transaction tx : prevBlock.txs) {
+			BytecodeContract bc = tx.receiver == null ? null : tx.receiver.bytecode;
+			if (bc != null && tx.type != Transaction.TYPE_AT_CREATE && !bc.isSleeping()
+					&& tx.amount >= bc.activationFee)
+				toRun.add(bc);
+		}
+		toRun.addAll(bytecodeToRun);
+		for (BytecodeContract bc : toRun) {
+			contractActivated(bc.address, null);
+			bc.run();
+			ArrayList<ActivationCost> costs = bc.address.activationCosts;
+			balanceChanged(bc.address, null, -costs.get(costs.size() - 1).fee);
+			if (bc.status == Machine.STATUS_STEP_LIMIT)
+				addSleeper(bc.address, currentBlock.height);
+			else if (bc.isSleeping()) {
+				addSleeper(bc.address, bc.sleepUntil);
+				contractSlept(bc.address, bc.sleepUntil);
+			}
+		}
+		if (blockEvents.hasSubscribers())
+			blockEvents.onNext(prevBlock);
+
+		if (compactTxs != null) {
+			for (Transaction tx : prevBlock.txs)
+				compactTxs.compact(tx);
+			prevBlock.txs = new ArrayList<>(0);
 		}
 	}
 
-	public Transaction getTxAfter(Address receiver, Timestamp ts) {
-		Block b = blocks.get(0);
-		while (b != null) {
-			for (int i = 0; i < b.txs.size(); i++) {
-				Transaction txi = b.txs.get(i);
-				if (txi.type != Transaction.TYPE_AT_CREATE && txi.receiver.equals(receiver)
-						&& !txi.getTimestamp().le(ts))
-					return txi;
+	/**
+	 * Runs a Java contract for the given transaction, as the compiled contract
+	 * would do: the first long of the message is the method hash and the other
+	 * three the arguments. Other messages go to the default
+	 * {@link Contract#txReceived()}.
+	 */
+	private static void dispatch(Contract c, Transaction tx) {
+		Register msg = tx.msg;
+		if (msg != null) {
+			Dispatcher dispatcher = Dispatcher.get(c.getClass());
+			int index = dispatcher.find(msg.value[0]);
+			if (index >= 0) {
+				try {
+					dispatcher.invoke(index, c, msg.value[1], msg.value[2], msg.value[3]);
+					return;
+				} catch (Throwable ex) {
+					ex.printStackTrace();
+				}
 			}
-			b = b.next;
+		}
+		// invoke the default method "txReceived"
+		c.txReceived();
+	}
+
+	public Transaction getTxAfter(Address receiver, Timestamp ts) {
+		return getTxAfter(receiver, ts == null ? Long.MIN_VALUE : ts.value, Long.MIN_VALUE);
+	}
+
+	/**
+	 * @return the first transaction to the receiver after the given timestamp and
+	 *         with at least the given amount, null if not found
+	 */
+	public Transaction getTxAfter(Address receiver, long ts, long minAmount) {
+		if (compactTxs != null) {
+			long id = getTxIdAfter(receiver, ts, minAmount);
+			return id == 0L ? null : getTx(id);
+		}
+		ArrayList<Transaction> list = local(receiver).txsReceived;
+		for (int i = firstTxAfter(list, ts); i < list.size(); i++) {
+			Transaction txi = list.get(i);
+			if (txi.amount >= minAmount)
+				return txi;
 		}
 		return null;
 	}
 
+	/**
+	 * @return the id of the first transaction to the receiver after the given
+	 *         timestamp and with at least the given amount, zero if not found
+	 */
+	long getTxIdAfter(Address receiver, long ts, long minAmount) {
+		if (compactTxs == null) {
+			Transaction tx = getTxAfter(receiver, ts, minAmount);
+			return tx == null ? 0L : tx.id;
+		}
+		Address ad = local(receiver);
+		for (int i = firstTxIdAfter(ad, ts); i < ad.ntxIds; i++) {
+			long id = ad.txIds[i];
+			if (compactTxs.getAmount(id) >= minAmount)
+				return id;
+		}
+		return 0L;
+	}
+
+	private int firstTxIdAfter(Address ad, long ts) {
+		int low = 0, high = ad.ntxIds;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compactTxs.getTimestamp(ad.txIds[mid]) <= ts)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * @return the position of the first transaction after the given timestamp on
+	 *         the given sorted list
+	 */
+	private static int firstTxAfter(ArrayList<Transaction> list, long ts) {
+		int low = 0, high = list.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (list.get(mid).ts.value <= ts)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Adds a forged transaction to the index of its receiver, kept sorted by
+	 * timestamp (postponed transactions are forged after newer ones).
+	 */
+	private void indexTx(Transaction tx) {
+		if (compactTxs != null) {
+			Address ad = tx.receiver;
+			if (ad.txIds == null)
+				ad.txIds = new long[4];
+			else if (ad.ntxIds == ad.txIds.length)
+				ad.txIds = Arrays.copyOf(ad.txIds, ad.ntxIds * 2);
+			int pos = firstTxIdAfter(ad, tx.ts.value);
+			System.arraycopy(ad.txIds, pos, ad.txIds, pos + 1, ad.ntxIds - pos);
+			ad.txIds[pos] = tx.id;
+			ad.ntxIds++;
+			return;
+		}
+		tx.receiver.ownLists();
+		ArrayList<Transaction> list = tx.receiver.txsReceived;
+		list.add(firstTxAfter(list, tx.ts.value), tx);
+	}
+
 	public Block getPrevBlock() {
 		return prevBlock;
 	}
@@ -0,0 +1,79 @@
+package bt;
+
+/**
+ * An event published by the {@link Emulator}, see
+ * {@link Emulator#contractActivated()}, {@link Emulator#contractSlept()} and
+ * {@link Emulator#balanceChanged()}.
+ *
+ * @author jjos
+ */
+public class EmulatorEvent {
+
+	public static final int CONTRACT_ACTIVATED = 1;
+	public static final int CONTRACT_SLEPT = 2;
+	public static final int BALANCE_CHANGED = 3;
+
+	int type;
+	Address address;
+	long height;
+	Transaction tx;
+	long value;
+
+	EmulatorEvent(int type, Address address, long height, Transaction tx, long value) {
+		this.type = type;
+		this.address = address;
+		this.height = height;
+		this.tx = tx;
+		this.value = value;
+	}
+
+	/**
+	 * @return one of the event type constants
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return the contract or the address whose balance changed
+	 */
+	public Address getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the height of the block being forged or run
+	 */
+	public long getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the transaction activating the contract or changing the balance,
+	 *         null for air drops, activation fees and contracts waking up
+	 */
+	public Transaction getTx() {
+		return tx;
+	}
+
+	/**
+	 * @return the height a sleeping contract wakes up or the balance change (in
+	 *         NQT, negative for a decrease)
+	 */
+	public long getValue() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		switch (type) {
+		case CONTRACT_ACTIVATED:
+			return "height " + height + ": " + address + " activated";
+		case CONTRACT_SLEPT:
+			return "height " + height + ": " + address + " sleeping until " + value;
+		default:
+			return "height " + height + ": " + address + " balance " + (value > 0 ? "+" : "")
+					+ ((double) value) / Contract.ONE_BURST;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package bt;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.RandomAccess;
+
+/**
+ * An append mostly list that can be forked cheaply, used for the emulator
+ * history.
+ *
+ * Elements are kept in fixed size chunks. Full chunks are shared between a
+ * list and its forks and copied only when one of them sets an element, so a
+ * fork costs one reference per chunk instead of one per element.
+ *
+ * @author jjos
+ */
+class ForkableList<T> extends AbstractList<T> implements RandomAccess {
+
+	static final int CHUNK_SIZE = 1024;
+
+	/** Full chunks, possibly shared with other lists */
+	private ArrayList<Object[]> chunks;
+	/** Chunks that are only referenced by this list, can be modified in place */
+	private boolean[] owned;
+	private Object[] tail = new Object[CHUNK_SIZE];
+	private int size;
+
+	ForkableList() {
+		chunks = new ArrayList<>();
+		owned = new boolean[16];
+	}
+
+	private ForkableList(ForkableList<T> other) {
+		chunks = new ArrayList<>(other.chunks);
+		owned = new boolean[other.owned.length];
+		// now shared by both
+		other.owned = new boolean[other.owned.length];
+		tail = other.tail.clone();
+		size = other.size;
+	}
+
+	/**
+	 * @return a new list with the same elements, independent of this one
+	 */
+	ForkableList<T> fork() {
+		return new ForkableList<>(this);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		int chunk = index / CHUNK_SIZE;
+		if (chunk < chunks.size())
+			return (T) chunks.get(chunk)[index % CHUNK_SIZE];
+		return (T) tail[index % CHUNK_SIZE];
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T set(int index, T element) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		int chunk = index / CHUNK_SIZE;
+		Object[] values = tail;
+		if (chunk < chunks.size()) {
+			values = chunks.get(chunk);
+			if (!owned[chunk]) {
+				values = values.clone();
+				chunks.set(chunk, values);
+				owned[chunk] = true;
+			}
+		}
+		T prev = (T) values[index % CHUNK_SIZE];
+		values[index % CHUNK_SIZE] = element;
+		return prev;
+	}
+
+	@Override
+	public boolean add(T element) {
+		tail[size++ % CHUNK_SIZE] = element;
+		if (size % CHUNK_SIZE == 0) {
+			if (chunks.size() == owned.length) {
+				boolean[] newOwned = new boolean[owned.length * 2];
+				System.arraycopy(owned, 0, newOwned, 0, owned.length);
+				owned = newOwned;
+			}
+			owned[chunks.size()] = true;
+			chunks.add(tail);
+			tail = new Object[CHUNK_SIZE];
+		}
+		modCount++;
+		return true;
+	}
+}
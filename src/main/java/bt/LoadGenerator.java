@@ -0,0 +1,399 @@
+package bt;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+import bt.compiler.Compiler;
+
+/**
+ * Generates synthetic transaction streams to a contract on the
+ * {@link Emulator}, for stress tests.
+ *
+ * Every block receives a Poisson distributed number of transactions, sent by a
+ * set of generated accounts chosen with a Zipf distribution (a few very active
+ * senders and a long tail). Each transaction is a payment or a call to one of
+ * the public methods of the contract (as listed by
+ * {@link Compiler#getMethods()}), according to the weights given. Method
+ * arguments are random: longs and ints up to {@link #setArgumentRange(long)},
+ * addresses from the senders and booleans.
+ *
+ * All random values come from the given seed, so a run can be repeated.
+ *
+ * @author jjos
+ */
+public class LoadGenerator {
+
+	Emulator emulator;
+	Address contract;
+	SplitMix64 random;
+
+	Address[] senders = new Address[0];
+	double[] senderWeights = new double[0];
+
+	double txsPerBlock = 10;
+	long minAmount = Contract.ONE_BURST;
+	long maxAmount = 10 * Contract.ONE_BURST;
+	boolean exponentialAmounts;
+	long argumentRange = 1000;
+
+	double paymentWeight = 1;
+	ArrayList<Method> methods = new ArrayList<>();
+	ArrayList<Double> methodWeights = new ArrayList<>();
+
+	/**
+	 * @param emulator the emulator to send transactions to
+	 * @param contract the contract address receiving the transactions
+	 * @param seed     the seed for all random values
+	 */
+	public LoadGenerator(Emulator emulator, Address contract, long seed) {
+		this.emulator = emulator;
+		this.contract = emulator.local(contract);
+		this.random = new SplitMix64(seed);
+	}
+
+	/**
+	 * Creates the given number of sender accounts, each with the given balance.
+	 *
+	 * @param n        the number of senders
+	 * @param exponent the Zipf exponent, sender k (from 1) is chosen with
+	 *                 probability proportional to 1/k^exponent, zero for
+	 *                 uniform
+	 * @param balance  the initial balance of each sender
+	 */
+	public LoadGenerator setSenders(int n, double exponent, long balance) {
+		senders = new Address[n];
+		senderWeights = new double[n];
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			senders[i] = emulator.getAddress(contract.getRsAddress() + "_LOAD_" + i);
+			emulator.airDrop(senders[i], balance);
+			total += 1 / Math.pow(i + 1, exponent);
+			senderWeights[i] = total;
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the mean of the Poisson distributed number of transactions per block.
+	 */
+	public LoadGenerator setTxsPerBlock(double mean) {
+		this.txsPerBlock = mean;
+		return this;
+	}
+
+	/**
+	 * Sets the amounts uniformly distributed between the given values.
+	 */
+	public LoadGenerator setAmounts(long min, long max) {
+		this.minAmount = min;
+		this.maxAmount = max;
+		this.exponentialAmounts = false;
+		return this;
+	}
+
+	/**
+	 * Sets the amounts exponentially distributed, starting from the given minimum
+	 * and with the given mean.
+	 */
+	public LoadGenerator setExponentialAmounts(long min, long mean) {
+		this.minAmount = min;
+		this.maxAmount = mean;
+		this.exponentialAmounts = true;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum (exclusive) of random long and int method arguments.
+	 */
+	public LoadGenerator setArgumentRange(long range) {
+		this.argumentRange = range;
+		return this;
+	}
+
+	/**
+	 * Sets the relative weight of plain payments, 1 by default.
+	 */
+	public LoadGenerator setPaymentWeight(double weight) {
+		this.paymentWeight = weight;
+		return this;
+	}
+
+	/**
+	 * Adds a public method of the contract to be called with the given relative
+	 * weight.
+	 *
+	 * @throws IllegalArgumentException if the method is not a public method of
+	 *                                  the contract
+	 */
+	public LoadGenerator addMethod(String name, double weight) {
+		Class<? extends Contract> clazz = contractClass();
+		for (Method m : clazz.getMethods()) {
+			if (m.getName().equals(name) && m.getDeclaringClass() != Contract.class
+					&& !Modifier.isStatic(m.getModifiers())) {
+				methods.add(m);
+				methodWeights.add(weight);
+				return this;
+			}
+		}
+		throw new IllegalArgumentException("Method not found: " + name);
+	}
+
+	/**
+	 * Adds all public methods of the compiled contract, each with the given
+	 * relative weight.
+	 */
+	public LoadGenerator addAllMethods(double weight) throws IOException {
+		Compiler comp = contract.bytecode != null ? contract.bytecode.getCompiler()
+				: BT.compileContract(contractClass());
+		for (bt.compiler.Method m : comp.getMethods()) {
+			String name = m.getName();
+			if (m.getHash() != 0 && Modifier.isPublic(m.getNode().access)
+					&& !Modifier.isStatic(m.getNode().access) && !name.equals(Compiler.INIT_METHOD)
+					&& !name.equals(Compiler.TX_RECEIVED_METHOD))
+				addMethod(name, weight);
+		}
+		return this;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Class<? extends Contract> contractClass() {
+		if (contract.contract != null)
+			return contract.contract.getClass();
+		if (contract.bytecode != null) {
+			try {
+				return (Class<? extends Contract>) Class.forName(contract.bytecode.getCompiler().getClassName());
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		throw new IllegalStateException("No contract at " + contract);
+	}
+
+	/**
+	 * Sends a new batch of transactions to the block being forged.
+	 *
+	 * @return the number of transactions sent
+	 */
+	public int generate() {
+		if (senders.length == 0)
+			throw new IllegalStateException("No senders, call setSenders first");
+
+		int n = poisson(txsPerBlock);
+		double totalWeight = paymentWeight;
+		for (double w : methodWeights)
+			totalWeight += w;
+
+		for (int i = 0; i < n; i++) {
+			Address sender = nextSender();
+			long amount = nextAmount();
+			double pick = nextDouble() * totalWeight - paymentWeight;
+			Method method = null;
+			for (int j = 0; j < methods.size() && pick >= 0; j++) {
+				pick -= methodWeights.get(j);
+				if (pick < 0)
+					method = methods.get(j);
+			}
+			if (method == null)
+				emulator.send(sender, contract, amount);
+			else
+				emulator.send(sender, contract, amount, Register.newMethodCall(method, nextArguments(method)));
+		}
+		return n;
+	}
+
+	/**
+	 * Generates transactions and forges the given number of blocks.
+	 *
+	 * @return the report of this run
+	 */
+	public Report run(int nblocks) throws Exception {
+		Report report = new Report(nblocks);
+		Runtime runtime = Runtime.getRuntime();
+		long startAddresses = emulator.getAddresses().size();
+		long startTxs = emulator.getTxs().size();
+		int startCosts = contract.activationCosts.size();
+		long startHeap = runtime.totalMemory() - runtime.freeMemory();
+
+		for (int i = 0; i < nblocks; i++) {
+			report.blockTxs[i] = generate();
+			long start = System.nanoTime();
+			emulator.forgeBlock();
+			report.blockNanos[i] = System.nanoTime() - start;
+			report.txs += report.blockTxs[i];
+			report.nanos += report.blockNanos[i];
+		}
+
+		report.addressesAdded = emulator.getAddresses().size() - startAddresses;
+		report.txsAdded = emulator.getTxs().size() - startTxs;
+		for (int i = startCosts; i < contract.activationCosts.size(); i++)
+			report.steps += contract.activationCosts.get(i).getSteps();
+		report.heapGrowth = runtime.totalMemory() - runtime.freeMemory() - startHeap;
+		report.balance = contract.balance;
+		return report;
+	}
+
+	private Address nextSender() {
+		double pick = nextDouble() * senderWeights[senderWeights.length - 1];
+		int low = 0, high = senderWeights.length - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (senderWeights[mid] <= pick)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return senders[low];
+	}
+
+	private long nextAmount() {
+		if (exponentialAmounts)
+			return minAmount + (long) (-Math.log(1 - nextDouble()) * (maxAmount - minAmount));
+		return minAmount + (long) (nextDouble() * (maxAmount - minAmount + 1));
+	}
+
+	private Object[] nextArguments(Method m) {
+		Object[] args = new Object[3];
+		Class<?>[] types = m.getParameterTypes();
+		for (int i = 0; i < types.length && i < args.length; i++) {
+			Class<?> type = types[i];
+			long v = (long) (nextDouble() * argumentRange);
+			if (type == Address.class)
+				args[i] = nextSender();
+			else if (type == long.class || type == Long.class)
+				args[i] = v;
+			else if (type == int.class || type == Integer.class)
+				args[i] = (int) v;
+			else if (type == boolean.class || type == Boolean.class)
+				args[i] = random.nextLong() < 0;
+		}
+		return args;
+	}
+
+	private double nextDouble() {
+		return (random.nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	private int poisson(double mean) {
+		if (mean <= 0)
+			return 0;
+		if (mean < 30) {
+			// Knuth, multiplying uniforms until below e^-mean
+			double limit = Math.exp(-mean), p = nextDouble();
+			int k = 0;
+			while (p > limit) {
+				k++;
+				p *= nextDouble();
+			}
+			return k;
+		}
+		// normal approximation for large means (Box-Muller)
+		double gaussian = Math.sqrt(-2 * Math.log(1 - nextDouble())) * Math.cos(2 * Math.PI * nextDouble());
+		return (int) Math.max(0, Math.round(mean + Math.sqrt(mean) * gaussian));
+	}
+
+	/**
+	 * Results of a {@link LoadGenerator#run(int)}.
+	 */
+	public static class Report {
+		int[] blockTxs;
+		long[] blockNanos;
+		long txs;
+		long nanos;
+		long steps;
+		long addressesAdded;
+		long txsAdded;
+		long heapGrowth;
+		long balance;
+
+		Report(int nblocks) {
+			blockTxs = new int[nblocks];
+			blockNanos = new long[nblocks];
+		}
+
+		/**
+		 * @return the transactions generated for each block
+		 */
+		public int[] getBlockTxs() {
+			return blockTxs;
+		}
+
+		/**
+		 * @return the time forging each block, including the contract execution, in
+		 *         nanoseconds
+		 */
+		public long[] getBlockNanos() {
+			return blockNanos;
+		}
+
+		public long getTxs() {
+			return txs;
+		}
+
+		/**
+		 * @return the transactions forged per second
+		 */
+		public double getThroughput() {
+			return nanos == 0 ? 0 : txs * 1e9 / nanos;
+		}
+
+		public double getMeanBlockMillis() {
+			return blockNanos.length == 0 ? 0 : nanos / 1e6 / blockNanos.length;
+		}
+
+		public double getMaxBlockMillis() {
+			long max = 0;
+			for (long n : blockNanos)
+				max = Math.max(max, n);
+			return max / 1e6;
+		}
+
+		/**
+		 * @return the steps run by the compiled contract, zero for Java contracts
+		 */
+		public long getSteps() {
+			return steps;
+		}
+
+		/**
+		 * @return the number of addresses created during the run, including the
+		 *         ones created by the contract
+		 */
+		public long getAddressesAdded() {
+			return addressesAdded;
+		}
+
+		/**
+		 * @return the number of transactions added to the chain, including the
+		 *         ones sent by the contract
+		 */
+		public long getTxsAdded() {
+			return txsAdded;
+		}
+
+		/**
+		 * @return the growth of the used heap during the run, in bytes (only an
+		 *         estimate, garbage collection is not forced)
+		 */
+		public long getHeapGrowth() {
+			return heapGrowth;
+		}
+
+		/**
+		 * @return the contract balance at the end of the run
+		 */
+		public long getBalance() {
+			return balance;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%d blocks, %d txs, %.0f txs/s, block %.3f ms mean %.3f ms max, %d steps, "
+							+ "+%d addresses, +%d txs, +%d KB heap, balance %.2f",
+					blockNanos.length, txs, getThroughput(), getMeanBlockMillis(), getMaxBlockMillis(), steps,
+					addressesAdded, txsAdded, heapGrowth / 1024, ((double) balance) / Contract.ONE_BURST);
+		}
+	}
+}
@@ -17,11 +17,19 @@ public class Register {
 	Method method;
 	Object[] args;
 
+	/**
+	 * A method call message, encoded as on-chain: the method hash followed by up
+	 * to 3 arguments (see {@link BT#callMethodMessage(bt.compiler.Method, Object...)}).
+	 * The method and arguments are kept for display only.
+	 */
 	@EmulatorWarning
 	public static Register newMethodCall(Method m, Object[] args) {
 		Register r = new Register();
 		r.method = m;
 		r.args = args;
+		r.value[0] = Dispatcher.methodHash(m);
+		for (int i = 0; i < 3; i++)
+			r.value[i + 1] = Dispatcher.encode(args != null && i < args.length ? args[i] : null);
 		return r;
 	}
 	
@@ -77,9 +85,13 @@ public class Register {
 		return value[3];
 	}
 
+	/**
+	 * @return true if both have the same values, a null register is taken as
+	 *         all zeros, as a register field never set on the compiled contract
+	 */
 	public boolean equals(Register other) {
 		for (int i = 0; i < value.length; i++) {
-			if(value[i] != other.value[i])
+			if(value[i] != (other == null ? 0L : other.value[i]))
 				return false;
 		}
 		return true;
@@ -0,0 +1,303 @@
+package bt;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Runs the Java contract activations of the {@link Emulator}, one at a time and
+ * always in the same order.
+ *
+ * Contracts that never call {@link Contract#sleep(long)} or
+ * {@link Contract#sleepUntilNextTx()} (checked on their class bytecode) run
+ * directly on the forging thread. The ones that may sleep need their stack kept
+ * while sleeping, so each gets one long lived {@link Fiber} thread used as a
+ * coroutine: control is explicitly handed back and forth and only one side
+ * runs at any time. Fibers end with {@link #close()}.
+ *
+ * This class should only be used by the emulated block-chain.
+ *
+ * @author jjos
+ */
+class Scheduler {
+
+	private final Emulator emulator;
+	private final HashMap<Class<?>, Boolean> canSleep = new HashMap<>();
+	private final ArrayList<Fiber> fibers = new ArrayList<>();
+
+	Scheduler(Emulator emulator) {
+		this.emulator = emulator;
+	}
+
+	/**
+	 * A scheduler for a forked emulator, reusing what is known about the contract
+	 * classes.
+	 */
+	Scheduler(Emulator emulator, Scheduler other) {
+		this.emulator = emulator;
+		canSleep.putAll(other.canSleep);
+	}
+
+	/**
+	 * A thread running the activations of a single contract, as a coroutine of
+	 * the forging thread.
+	 */
+	static class Fiber extends Thread {
+		private final Semaphore resume = new Semaphore(0);
+		private final Semaphore yield = new Semaphore(0);
+		private Runnable task;
+
+		Fiber(String name) {
+			super(name);
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					resume.acquire();
+					try {
+						task.run();
+					} catch (Closed ex) {
+						return;
+					} catch (Throwable ex) {
+						ex.printStackTrace();
+					}
+					task = null;
+					yield.release();
+				}
+			} catch (InterruptedException ex) {
+				// closed while waiting for a new task
+			}
+		}
+
+		/**
+		 * Called from the forging thread, runs the given task until it finishes or
+		 * suspends.
+		 */
+		void enter(Runnable task) {
+			this.task = task;
+			enter();
+		}
+
+		/**
+		 * Called from the forging thread, continues a suspended task until it
+		 * finishes or suspends again.
+		 */
+		void enter() {
+			resume.release();
+			yield.acquireUninterruptibly();
+		}
+
+		/**
+		 * Called from this fiber, suspends the running task until resumed.
+		 */
+		void leave() {
+			yield.release();
+			try {
+				resume.acquire();
+			} catch (InterruptedException ex) {
+				// closed while suspended, unwind the task
+				throw new Closed();
+			}
+		}
+	}
+
+	/**
+	 * Thrown on a suspended task when its fiber is closed.
+	 */
+	private static class Closed extends Error {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Creates a new instance of the given contract class, the contract constructor
+	 * is expected to read the transaction from {@link Emulator#curTx} of
+	 * {@link Emulator#current()}.
+	 */
+	void create(String className) {
+		Class<?> clazz;
+		try {
+			clazz = Class.forName(className);
+		} catch (ClassNotFoundException ex) {
+			ex.printStackTrace();
+			return;
+		}
+		create(clazz, null);
+	}
+
+	/**
+	 * Creates a copy of the given contract (from another emulator) for the
+	 * receiver of {@link Emulator#curTx}.
+	 * 
+	 * Fields are copied shallowly, except for arrays that are cloned and
+	 * addresses that are replaced by the ones of this emulator.
+	 */
+	void copy(Contract original) {
+		create(original.getClass(), original);
+	}
+
+	private void create(Class<?> clazz, Contract original) {
+		Runnable task = () -> {
+			Emulator.context.set(emulator);
+			try {
+				Object c = clazz.getConstructor().newInstance();
+				if (original != null)
+					copyFields(original, (Contract) c);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			} finally {
+				Emulator.context.remove();
+			}
+		};
+
+		if (!canSleep(clazz)) {
+			task.run();
+			return;
+		}
+
+		Transaction tx = emulator.curTx;
+		Fiber fiber = new Fiber(clazz.getName() + " " + tx.receiver);
+		fibers.add(fiber);
+		fiber.enter(task);
+		if (tx.receiver.contract != null)
+			tx.receiver.contract.fiber = fiber;
+	}
+
+	private void copyFields(Contract from, Contract to) throws IllegalAccessException {
+		for (Class<?> c = from.getClass(); c != Object.class; c = c.getSuperclass()) {
+			for (java.lang.reflect.Field f : c.getDeclaredFields()) {
+				if (Modifier.isStatic(f.getModifiers()))
+					continue;
+				f.setAccessible(true);
+				f.set(to, copyValue(f.get(from)));
+			}
+		}
+		to.emulator = emulator;
+		to.fiber = null;
+	}
+
+	private Object copyValue(Object v) {
+		if (v instanceof Address)
+			return emulator.local((Address) v);
+		if (v == null || !v.getClass().isArray())
+			return v;
+		int length = Array.getLength(v);
+		Object copy = Array.newInstance(v.getClass().getComponentType(), length);
+		for (int i = 0; i < length; i++)
+			Array.set(copy, i, copyValue(Array.get(v, i)));
+		return copy;
+	}
+
+	/**
+	 * Runs the given activation of a contract.
+	 */
+	void run(Contract c, Runnable activation) {
+		if (c.fiber != null)
+			c.fiber.enter(activation);
+		else {
+			try {
+				activation.run();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Resumes a sleeping contract.
+	 */
+	void resume(Contract c) {
+		if (c.fiber != null)
+			c.fiber.enter();
+	}
+
+	/**
+	 * @return true if running on a contract fiber, so it can be suspended
+	 */
+	static boolean inFiber() {
+		return Thread.currentThread() instanceof Fiber;
+	}
+
+	/**
+	 * Suspends the running contract, called from the contract itself.
+	 *
+	 * @return false if the contract cannot be suspended
+	 */
+	boolean suspend() {
+		if (inFiber()) {
+			((Fiber) Thread.currentThread()).leave();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Ends all fibers, interrupting the contracts sleeping, and waits for them.
+	 */
+	void close() {
+		for (Fiber f : fibers)
+			f.interrupt();
+		boolean interrupted = false;
+		for (Fiber f : fibers) {
+			while (f.isAlive()) {
+				try {
+					f.join();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+		}
+		fibers.clear();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * @return true if the given contract class (or a superclass) calls one of the
+	 *         sleep functions
+	 */
+	boolean canSleep(Class<?> clazz) {
+		Boolean ret = canSleep.get(clazz);
+		if (ret == null) {
+			ret = false;
+			for (Class<?> c = clazz; c != null && c != Contract.class && !ret; c = c.getSuperclass()) {
+				ret = callsSleep(c);
+			}
+			canSleep.put(clazz, ret);
+		}
+		return ret;
+	}
+
+	private static boolean callsSleep(Class<?> clazz) {
+		ClassNode cn = new ClassNode();
+		try {
+			new ClassReader(clazz.getName()).accept(cn, 0);
+		} catch (IOException ex) {
+			// cannot check, assume it sleeps to be on the safe side
+			return true;
+		}
+		for (MethodNode m : cn.methods) {
+			for (AbstractInsnNode insn : m.instructions.toArray()) {
+				if (!(insn instanceof MethodInsnNode))
+					continue;
+				MethodInsnNode mi = (MethodInsnNode) insn;
+				if ((mi.name.equals("sleep") && mi.desc.equals("(J)V"))
+						|| (mi.name.equals("sleepUntilNextTx") && mi.desc.equals("()V")))
+					return true;
+			}
+		}
+		return false;
+	}
+}
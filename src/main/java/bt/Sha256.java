@@ -0,0 +1,73 @@
+package bt;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Per thread SHA-256 digest and scratch buffers used by the emulator.
+ *
+ * Hashes 4 longs (little endian, as on the AT machine) without allocating.
+ *
+ * @author jjos
+ */
+final class Sha256 {
+
+	private static final ThreadLocal<Sha256> instance = new ThreadLocal<Sha256>() {
+		@Override
+		protected Sha256 initialValue() {
+			return new Sha256();
+		}
+	};
+
+	private final MessageDigest digest;
+	private final byte[] in = new byte[32];
+	private final byte[] out = new byte[32];
+	/** Scratch result, valid until the next hash on this thread */
+	final long[] result = new long[4];
+
+	private Sha256() {
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// not expected to reach that point
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static Sha256 get() {
+		return instance.get();
+	}
+
+	/**
+	 * Hashes the given 4 longs into the given output array.
+	 */
+	void hash(long[] input, long[] output) {
+		for (int i = 0, pos = 0; i < 4; i++) {
+			long v = input[i];
+			for (int j = 0; j < 8; j++, v >>>= 8)
+				in[pos++] = (byte) v;
+		}
+		digest.update(in);
+		try {
+			digest.digest(out, 0, out.length);
+		} catch (DigestException e) {
+			// not expected to reach that point
+			throw new IllegalStateException(e);
+		}
+		for (int i = 0, pos = 0; i < 4; i++) {
+			long v = 0;
+			for (int j = 0; j < 8; j++)
+				v |= (out[pos++] & 0xffL) << (8 * j);
+			output[i] = v;
+		}
+	}
+
+	/**
+	 * Hashes the given 4 longs into {@link #result}.
+	 */
+	long[] hash(long[] input) {
+		hash(input, result);
+		return result;
+	}
+}
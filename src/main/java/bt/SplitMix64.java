@@ -0,0 +1,36 @@
+package bt;
+
+/**
+ * The SplitMix64 pseudo random generator, fast and fully determined by its
+ * seed. Used for the block hashes of the emulator.
+ *
+ * @author jjos
+ */
+final class SplitMix64 {
+
+	static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private long state;
+
+	SplitMix64(long seed) {
+		this.state = seed;
+	}
+
+	SplitMix64(SplitMix64 other) {
+		this.state = other.state;
+	}
+
+	long nextLong() {
+		return mix(state += GOLDEN_GAMMA);
+	}
+
+	/**
+	 * The SplitMix64 output function, a bijective mix of the bits of the given
+	 * value.
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
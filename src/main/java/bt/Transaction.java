@@ -1,5 +1,7 @@
 package bt;
 
+import bt.compiler.Compiler;
+
 /**
  * Class representing a transaction.
  * 
@@ -15,6 +17,7 @@ public class Transaction {
 	static final byte TYPE_AT_CREATE = 2;
 	static final byte TYPE_METHOD_CALL = 3;
 
+	long id;
 	Block block;
 	Address sender;
 	Address receiver;
@@ -23,6 +26,7 @@ public class Transaction {
 	Timestamp ts;
 	String msgString;
 	Register msg;
+	Compiler compiledContract;
 
 	/**
 	 * Users are not allowed to create new instances of this class, this function
@@ -70,6 +74,18 @@ public class Transaction {
 		this.msg = msg;
 	}
 
+	/**
+	 * Copy of the given transaction for a forked emulator, with the given
+	 * addresses and block of that emulator.
+	 */
+	Transaction(Transaction other, Address sender, Address receiver, Block block) {
+		this(sender, receiver, other.amount, other.type, other.ts, other.msg);
+		this.id = other.id;
+		this.block = block;
+		this.msgString = other.msgString;
+		this.compiledContract = other.compiledContract;
+	}
+
 	/**
 	 * @return the sender address for this transaction
 	 */
@@ -91,6 +107,8 @@ public class Transaction {
 	public long getAmount() {
 		if (receiver != null && receiver.contract != null)
 			return amount - receiver.contract.activationFee;
+		if (receiver != null && receiver.bytecode != null)
+			return amount - receiver.bytecode.activationFee;
 		return amount;
 	}
 
@@ -113,7 +131,9 @@ public class Transaction {
 	 * @return the message in this transaction
 	 */
 	public boolean checkMessageSHA256(Register hash) {
-		return Contract.performSHA256_(msg).equals(hash);
+		long[] msgHash = Sha256.get().hash(msg.value);
+		return msgHash[0] == hash.value[0] && msgHash[1] == hash.value[1] && msgHash[2] == hash.value[2]
+				&& msgHash[3] == hash.value[3];
 	}
 	
 	/**
@@ -123,9 +143,8 @@ public class Transaction {
 	 * @return true if they match
 	 */
 	public boolean checkMessageSHA256_192(Register hash) {
-		Register msgHash = Contract.performSHA256_(msg);
-		return msgHash.getValue2()== hash.getValue2() && msgHash.getValue3()== hash.getValue3()
-				&& msgHash.getValue4()== hash.getValue4();
+		long[] msgHash = Sha256.get().hash(msg.value);
+		return msgHash[1] == hash.value[1] && msgHash[2] == hash.value[2] && msgHash[3] == hash.value[3];
 	}
 
 	/**
@@ -162,6 +181,14 @@ public class Transaction {
 		return ts;
 	}
 
+	/**
+	 * @return the id of this transaction, sequential on the emulator
+	 */
+	@EmulatorWarning
+	public long getId() {
+		return id;
+	}
+
 	public byte getType() {
 		return type;
 	}
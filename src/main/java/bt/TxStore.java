@@ -0,0 +1,147 @@
+package bt;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.RandomAccess;
+
+/**
+ * Compact storage of the emulator transactions, see
+ * {@link Emulator#setCompactHistory()}.
+ *
+ * Forged transactions are kept as parallel primitive arrays (in chunks, so the
+ * arrays never need to be copied when growing) and a new {@link Transaction}
+ * is created every time one is accessed. Transactions still pending and
+ * contract creations are kept as objects. Method calls keep their encoded
+ * message only.
+ *
+ * @author jjos
+ */
+class TxStore extends AbstractList<Transaction> implements RandomAccess {
+
+	static final int CHUNK_BITS = 16;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final Emulator emulator;
+
+	private final ArrayList<long[]> senders = new ArrayList<>();
+	private final ArrayList<long[]> receivers = new ArrayList<>();
+	private final ArrayList<long[]> amounts = new ArrayList<>();
+	private final ArrayList<long[]> timestamps = new ArrayList<>();
+	/** Height of the block forging the transaction, later than the timestamp if postponed */
+	private final ArrayList<long[]> heights = new ArrayList<>();
+	private final ArrayList<byte[]> types = new ArrayList<>();
+	/** Position of the message on {@link #messages} plus one, zero for none */
+	private final ArrayList<int[]> messageIndexes = new ArrayList<>();
+	private long[] messages = new long[4 * 64];
+	private int nmessages;
+
+	/** Transactions not compacted, by id */
+	private final HashMap<Long, Transaction> objects = new HashMap<>();
+	private int size;
+
+	TxStore(Emulator emulator) {
+		this.emulator = emulator;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean add(Transaction tx) {
+		if ((size & CHUNK_MASK) == 0) {
+			senders.add(new long[CHUNK_SIZE]);
+			receivers.add(new long[CHUNK_SIZE]);
+			amounts.add(new long[CHUNK_SIZE]);
+			timestamps.add(new long[CHUNK_SIZE]);
+			heights.add(new long[CHUNK_SIZE]);
+			types.add(new byte[CHUNK_SIZE]);
+			messageIndexes.add(new int[CHUNK_SIZE]);
+		}
+		// the id is the position plus one
+		objects.put((long) ++size, tx);
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Moves a forged transaction to the primitive arrays, if possible.
+	 */
+	void compact(Transaction tx) {
+		if (tx.type == Transaction.TYPE_AT_CREATE)
+			return;
+
+		int index = (int) (tx.id - 1);
+		int chunk = index >>> CHUNK_BITS;
+		int pos = index & CHUNK_MASK;
+		senders.get(chunk)[pos] = tx.sender == null ? 0L : tx.sender.id;
+		receivers.get(chunk)[pos] = tx.receiver == null ? 0L : tx.receiver.id;
+		amounts.get(chunk)[pos] = tx.amount;
+		timestamps.get(chunk)[pos] = tx.ts.value;
+		heights.get(chunk)[pos] = tx.block.height;
+		types.get(chunk)[pos] = tx.type;
+		if (tx.msg != null) {
+			if (messages.length < (nmessages + 1) * 4) {
+				long[] grown = new long[messages.length * 2];
+				System.arraycopy(messages, 0, grown, 0, messages.length);
+				messages = grown;
+			}
+			System.arraycopy(tx.msg.value, 0, messages, nmessages * 4, 4);
+			messageIndexes.get(chunk)[pos] = ++nmessages;
+		}
+		objects.remove(tx.id);
+	}
+
+	/**
+	 * @return the timestamp of the transaction with the given id
+	 */
+	long getTimestamp(long id) {
+		Transaction tx = objects.get(id);
+		if (tx != null)
+			return tx.ts.value;
+		int index = (int) (id - 1);
+		return timestamps.get(index >>> CHUNK_BITS)[index & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the amount of the transaction with the given id
+	 */
+	long getAmount(long id) {
+		Transaction tx = objects.get(id);
+		if (tx != null)
+			return tx.amount;
+		int index = (int) (id - 1);
+		return amounts.get(index >>> CHUNK_BITS)[index & CHUNK_MASK];
+	}
+
+	@Override
+	public Transaction get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		long id = index + 1;
+		Transaction tx = objects.get(id);
+		if (tx != null)
+			return tx;
+
+		int chunk = index >>> CHUNK_BITS;
+		int pos = index & CHUNK_MASK;
+		long ts = timestamps.get(chunk)[pos];
+		Register msg = null;
+		int msgIndex = messageIndexes.get(chunk)[pos];
+		if (msgIndex > 0) {
+			int m = (msgIndex - 1) * 4;
+			msg = Register.newInstance(messages[m], messages[m + 1], messages[m + 2], messages[m + 3]);
+		}
+		long sender = senders.get(chunk)[pos];
+		long receiver = receivers.get(chunk)[pos];
+		tx = new Transaction(sender == 0L ? null : emulator.getAddress(sender),
+				receiver == 0L ? null : emulator.getAddress(receiver), amounts.get(chunk)[pos],
+				types.get(chunk)[pos], new Timestamp(ts >>> 32, ts & 0xffffffffL), msg);
+		tx.id = id;
+		tx.block = emulator.blocks.get((int) heights.get(chunk)[pos]);
+		return tx;
+	}
+}
@@ -20,6 +20,7 @@ import signumj.entity.SignumAddress;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldInsnNode;
@@ -41,6 +42,12 @@ import org.objectweb.asm.tree.VarInsnNode;
 public class Compiler {
 
 	public static final CompilerVersion currentVersion = CompilerVersion.v0_0_0;
+	/**
+	 * Revision of the code generated, should be increased on every change to the
+	 * code emitted by the compiler or the {@link Optimizer}, so contracts cached
+	 * by the {@link CompilerCache} are compiled again.
+	 */
+	public static final int CODE_REVISION = 9;
 
 	public static final String INIT_METHOD = "<init>";
 	public static final String MAIN_METHOD = "main";
@@ -48,6 +55,8 @@ public class Compiler {
 	public static final String FINISHED_METHOD = "blockFinished";
 	public static final String TX_RECEIVED_METHOD = "txReceived";
 	public static final int PAGE_SIZE = 256;
+	/** Variables reserved for the stack frames of recursive methods */
+	static final int FRAMES_SIZE = 32;
 
 	private static final String UNEXPECTED_ERROR = "Unexpected error, please report at https://github.com/burst-apps-team/blocktalk/issues";
 	
@@ -71,6 +80,8 @@ public class Compiler {
 	int lastTxSender;
 	int lastTxAmount;
 	int tmpVar1, tmpVar2, tmpVar3, tmpVar4, tmpVar5, tmpVar6;
+	/** Extra temporary variables, allocated by the {@link Optimizer} */
+	ArrayList<Integer> tmpSlots = new ArrayList<>();
 	int localStart;
 	boolean useLocal;
 	int creator;
@@ -80,6 +91,14 @@ public class Compiler {
 	boolean hasPublicMethods;
 	boolean hasTxReceived;
 
+	/** If the peephole optimizer runs after parsing the methods */
+	boolean optimize = true;
+
+	/** If loads of frame-less locals are kept as references, no code needed */
+	boolean lazyLocals;
+	/** If a local reference on the stack would be overwritten or cross a branch */
+	boolean lazyLocalsFailed;
+
 	public class Error {
 		AbstractInsnNode node;
 		String message;
@@ -97,6 +116,14 @@ public class Compiler {
 	ArrayList<Error> errors = new ArrayList<>();
 
 	public Compiler(Class<? extends Contract> clazz) throws IOException {
+		this(clazz, null);
+	}
+
+	/**
+	 * Creates a compiler for the given class file bytes, read from the class path
+	 * if null.
+	 */
+	Compiler(Class<? extends Contract> clazz, byte[] classBytes) throws IOException {
 		this.className = clazz.getName();
 		TargetCompilerVersion targetCompilerVersion = clazz.getAnnotation(TargetCompilerVersion.class);
 		if (targetCompilerVersion == null) {
@@ -112,7 +139,7 @@ public class Compiler {
 
 		// read in, build classNode
 		ClassNode classNode = new ClassNode();
-		ClassReader cr = new ClassReader(className);
+		ClassReader cr = classBytes != null ? new ClassReader(classBytes) : new ClassReader(className);
 		cr.accept(classNode, 0);
 
 		this.cn = classNode;
@@ -177,7 +204,11 @@ public class Compiler {
 
 	public int getDataPages() {
 		// check if this is actually enough
-		int nvars = localStart + 3;
+		int nvars = lastFreeVar + 2;
+		if (useLocal) {
+			// room for the stack frames of recursive methods
+			nvars += FRAMES_SIZE;
+		}
 		int npages = nvars / 32 + 1;
 		return npages;
 	}
@@ -186,6 +217,14 @@ public class Compiler {
 		return className;
 	}
 
+	/**
+	 * Enables or disables the peephole optimizer, should be called before
+	 * {@link #compile()}.
+	 */
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
+	}
+
 	private void readFields() {
 
 		if (!cn.superName.replace('/', '.').equals(Contract.class.getName())) {
@@ -378,39 +417,19 @@ public class Compiler {
 			code.putShort(OpCode.Get_B1);
 			code.putInt(tmpVar4);
 
+			// dispatch on a balanced comparison tree of the sorted hashes
+			ArrayList<Method> publicMethods = new ArrayList<>();
 			for (Method m : methods.values()) {
 				if (m.node.name.equals(MAIN_METHOD) || m.node.name.equals(TX_RECEIVED_METHOD)
 						|| m.node.name.equals(INIT_METHOD) || !Modifier.isPublic(m.node.access))
 					continue;
-
-				if (m.node.name.equals(INIT_METHOD) && m.code.position() < 2)
-					continue; // empty constructor
-
-				code.put(OpCode.e_op_code_SET_VAL);
-				code.putInt(tmpVar1);
-				code.putLong(m.hash);
-
-				code.put(OpCode.e_op_code_SUB_DAT);
-				code.putInt(tmpVar1);
-				code.putInt(tmpVar4);
-
-				code.put(OpCode.e_op_code_BNZ_DAT);
-				code.putInt(tmpVar1);
-				code.put((byte) (16 + m.nargs * 7));
-
-				// load the arguments on the local vars
-				for (int i = 0; i < m.nargs; i++) {
-					useLocal = true;
-					code.put(OpCode.e_op_code_EXT_FUN_RET);
-					code.putShort((short) (OpCode.Get_B1 + i + 1));
-					code.putInt(localStart + 1 + m.localArgPos[i]);
-				}
-				// call the method
-				code.put(OpCode.e_op_code_JMP_SUB);
-				code.putInt(m.address);
-				// end this run (check for the next transaction)
-				code.put(OpCode.e_op_code_JMP_ADR);
-				code.putInt(afterBlockStartedAddress);
+				publicMethods.add(m);
+			}
+			publicMethods.sort((m1, m2) -> Long.compare(m1.hash, m2.hash));
+			int size = publicMethods.size();
+			if (size > 0) {
+				int notFoundAddress = code.position() + dispatchSize(publicMethods, 0, size);
+				dispatchCode(publicMethods, 0, size, notFoundAddress, afterBlockStartedAddress);
 			}
 		}
 
@@ -429,6 +448,90 @@ public class Compiler {
 		}
 	}
 
+	/** Size of a dispatch tree node, comparing and branching */
+	private static final int DISPATCH_NODE_SIZE = 13 + 10;
+	/** Size of a dispatch tree leaf, without the argument loading */
+	private static final int DISPATCH_LEAF_SIZE = 13 + 10 + 5 + 5 + 5;
+
+	/**
+	 * @return the code size of the dispatch tree for the given (sorted) methods
+	 */
+	private static int dispatchSize(List<Method> sorted, int from, int to) {
+		if (to - from == 1)
+			return DISPATCH_LEAF_SIZE + sorted.get(from).nargs * 7;
+		int mid = (from + to) >>> 1;
+		int left = dispatchSize(sorted, from, mid);
+		return DISPATCH_NODE_SIZE + (dispatchShortJump(left) ? 0 : 5) + left + dispatchSize(sorted, mid, to);
+	}
+
+	/**
+	 * @return true if the right subtree is close enough to branch to it directly
+	 */
+	private static boolean dispatchShortJump(int leftSize) {
+		return 10 + leftSize <= Byte.MAX_VALUE;
+	}
+
+	/**
+	 * Puts the code calling the method with the hash on tmpVar4, for the given
+	 * methods sorted by hash.
+	 * 
+	 * Each node compares against the last hash of its left half, so a call costs
+	 * about 2 steps per level instead of 3 steps per method before it.
+	 */
+	private void dispatchCode(List<Method> sorted, int from, int to, int notFoundAddress, int returnAddress) {
+		if (to - from == 1) {
+			Method m = sorted.get(from);
+			code.put(OpCode.e_op_code_SET_VAL);
+			code.putInt(tmpVar1);
+			code.putLong(m.hash);
+			// skip the jump to txReceived if this is the one
+			code.put(OpCode.e_op_code_BEQ_DAT);
+			code.putInt(tmpVar4);
+			code.putInt(tmpVar1);
+			code.put((byte) 15);
+			code.put(OpCode.e_op_code_JMP_ADR);
+			code.putInt(notFoundAddress);
+
+			// load the arguments on the local vars, the first frame when recursive
+			int localBase = m.localBase >= 0 ? m.localBase : lastFreeVar;
+			for (int i = 0; i < m.nargs; i++) {
+				code.put(OpCode.e_op_code_EXT_FUN_RET);
+				code.putShort((short) (OpCode.Get_B1 + i + 1));
+				code.putInt(localBase + m.localArgPos[i]);
+			}
+			// call the method
+			code.put(OpCode.e_op_code_JMP_SUB);
+			code.putInt(m.address);
+			// end this run (check for the next transaction)
+			code.put(OpCode.e_op_code_JMP_ADR);
+			code.putInt(returnAddress);
+			return;
+		}
+
+		int mid = (from + to) >>> 1;
+		int leftSize = dispatchSize(sorted, from, mid);
+		code.put(OpCode.e_op_code_SET_VAL);
+		code.putInt(tmpVar1);
+		code.putLong(sorted.get(mid - 1).hash);
+		if (dispatchShortJump(leftSize)) {
+			code.put(OpCode.e_op_code_BGT_DAT);
+			code.putInt(tmpVar4);
+			code.putInt(tmpVar1);
+			code.put((byte) (10 + leftSize));
+		} else {
+			// too far for a branch, skip an absolute jump instead
+			int rightAddress = code.position() + 10 + 5 + leftSize;
+			code.put(OpCode.e_op_code_BLE_DAT);
+			code.putInt(tmpVar4);
+			code.putInt(tmpVar1);
+			code.put((byte) 15);
+			code.put(OpCode.e_op_code_JMP_ADR);
+			code.putInt(rightAddress);
+		}
+		dispatchCode(sorted, from, mid, notFoundAddress, returnAddress);
+		dispatchCode(sorted, mid, to, notFoundAddress, returnAddress);
+	}
+
 	public void link() {
 		// we allow here a larger size, there will be an error when registering
 		// if we pass the actual limit
@@ -438,11 +541,14 @@ public class Compiler {
 		initialCode();
 		int startMethodsPosition = code.position();
 
+		// methods not reachable from the entry points are left out
+		HashSet<Method> reachable = reachableMethods();
+
 		// determine the address of each method
 		int address = startMethodsPosition; // position of the first method
 		for (Method m : methods.values()) {
-			if (m.code.position() < 2)
-				continue; // empty method
+			if (m.code.position() < 2 || !reachable.contains(m))
+				continue; // empty or unused method
 			m.address = address;
 			address += m.code.position();
 		}
@@ -452,6 +558,8 @@ public class Compiler {
 
 		// resolve all jumps
 		for (Method m : methods.values()) {
+			if (!reachable.contains(m))
+				continue;
 			// resolve all offsets
 			for (Method.Jump j : m.jumps) {
 				int jaddress = 0;
@@ -481,8 +589,8 @@ public class Compiler {
 
 		// add methods
 		for (Method m : methods.values()) {
-			if (m.code.position() < 2)
-				continue; // empty method
+			if (m.code.position() < 2 || !reachable.contains(m))
+				continue; // empty or unused method
 
 			if (m.code.position() > code.capacity() - code.position()) {
 				String methodList = "";
@@ -496,6 +604,34 @@ public class Compiler {
 		}
 	}
 
+	/**
+	 * @return true if the method is called from the contract initial code
+	 */
+	static boolean isEntryPoint(Method m) {
+		String name = m.node.name;
+		return Modifier.isPublic(m.node.access) || name.equals(INIT_METHOD) || name.equals(TX_RECEIVED_METHOD)
+				|| name.equals(STARTED_METHOD) || name.equals(FINISHED_METHOD);
+	}
+
+	/**
+	 * @return the methods reachable from the entry points, following the calls
+	 */
+	private HashSet<Method> reachableMethods() {
+		HashSet<Method> reachable = new HashSet<>();
+		ArrayDeque<Method> pending = new ArrayDeque<>();
+		for (Method m : methods.values()) {
+			if (isEntryPoint(m) && reachable.add(m))
+				pending.add(m);
+		}
+		while (!pending.isEmpty()) {
+			for (Method.Jump j : pending.poll().jumps) {
+				if (j.method != null && reachable.add(j.method))
+					pending.add(j.method);
+			}
+		}
+		return reachable;
+	}
+
 	private void readMethods() {
 		hasPublicMethods = false;
 		hasTxReceived = false;
@@ -521,17 +657,129 @@ public class Compiler {
 		if (errors.size() > 0)
 			return;
 
+		allocateLocals();
+
 		// Then parse
 		for (Method m : methods.values()) {
 			logger.debug("** METHOD: {}", m.node.name);
 			if (m.hash != 0) {
 				logger.info("METHOD: {}, hash: {}", m.node.name, m.hash);
 			}
+			int nerrors = errors.size();
+			LinkedList<StackVar> stackBefore = new LinkedList<>(stack);
+			lazyLocals = m.localBase >= 0;
+			lazyLocalsFailed = false;
 			parseMethod(m);
+			if (lazyLocalsFailed) {
+				logger.debug("parsing again with locals on the stack");
+				while (errors.size() > nerrors)
+					errors.remove(errors.size() - 1);
+				stack = stackBefore;
+				m.jumps.clear();
+				lazyLocals = false;
+				lazyLocalsFailed = false;
+				parseMethod(m);
+			}
 
 			if (m.node.name.equals(TX_RECEIVED_METHOD) && m.code.position() > 1)
 				hasTxReceived = true;
 		}
+
+		if (optimize && errors.size() == 0) {
+			for (Method m : methods.values())
+				Optimizer.optimize(this, m);
+			Optimizer.inline(this);
+		}
+	}
+
+	/**
+	 * Assigns fixed addresses to the local variables of methods that cannot be
+	 * active twice at the same time, so every access is a single instruction.
+	 * 
+	 * Recursive methods keep their locals on a stack frame pointed by
+	 * {@link #localStart}, the frames start after all fixed addresses.
+	 */
+	private void allocateLocals() {
+		// the user methods each method calls
+		HashMap<Method, HashSet<Method>> calls = new HashMap<>();
+		for (Method m : methods.values()) {
+			HashSet<Method> callees = new HashSet<>();
+			for (AbstractInsnNode insn : m.node.instructions.toArray()) {
+				if (insn instanceof MethodInsnNode) {
+					MethodInsnNode mi = (MethodInsnNode) insn;
+					Method callee = methods.get(mi.name);
+					if (callee != null && mi.owner.replace('/', '.').equals(className))
+						callees.add(callee);
+				}
+			}
+			calls.put(m, callees);
+		}
+
+		// methods reaching themselves need a stack frame, others start at offset 0
+		HashMap<Method, Integer> offsets = new HashMap<>();
+		for (Method m : methods.values()) {
+			m.localBase = -1;
+			if (!reaches(calls, m, m, new HashSet<>()))
+				offsets.put(m, 0);
+		}
+
+		// the methods each one can call, directly or not, recursive ones included
+		HashMap<Method, HashSet<Method>> reachable = new HashMap<>();
+		for (Method m : offsets.keySet()) {
+			HashSet<Method> visited = new HashSet<>();
+			reaches(calls, m, null, visited);
+			reachable.put(m, visited);
+		}
+
+		// a callee locals come after the locals of all its callers, also when
+		// called through recursive methods
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Method m : offsets.keySet()) {
+				int end = offsets.get(m) + getLocalsSize(m);
+				for (Method callee : reachable.get(m)) {
+					Integer offset = offsets.get(callee);
+					if (offset != null && offset < end) {
+						offsets.put(callee, end);
+						changed = true;
+					}
+				}
+			}
+		}
+
+		for (Map.Entry<Method, Integer> e : offsets.entrySet()) {
+			Method m = e.getKey();
+			m.localBase = localStart + 1 + e.getValue();
+			lastFreeVar = Math.max(lastFreeVar, m.localBase + getLocalsSize(m));
+		}
+	}
+
+	private static boolean reaches(HashMap<Method, HashSet<Method>> calls, Method from, Method to,
+			HashSet<Method> visited) {
+		for (Method callee : calls.get(from)) {
+			if (callee == to || (visited.add(callee) && reaches(calls, callee, to, visited)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of local variables, not counting 'this'
+	 */
+	private static int getLocalsSize(Method m) {
+		return Math.max(0, m.node.maxLocals - 1);
+	}
+
+	/**
+	 * Marks the method to be parsed again if there is a reference to the given
+	 * local address (or any local if negative) on the stack.
+	 */
+	private void checkLazyLocals(int address) {
+		for (StackVar v : stack) {
+			if (v.type == STACK_FIELD && v.address > localStart && (address < 0 || v.address == address))
+				lazyLocalsFailed = true;
+		}
 	}
 
 	/**
@@ -576,6 +824,40 @@ public class Compiler {
 		return -1;
 	}
 
+	/**
+	 * Sets two A or B registers from the given addresses in a single API call,
+	 * like {@link OpCode#Set_A1_A2}.
+	 */
+	private static void putExtFunDat2(ByteBuffer code, short fun, int address1, int address2) {
+		code.put(OpCode.e_op_code_EXT_FUN_DAT_2);
+		code.putShort(fun);
+		code.putInt(address1);
+		code.putInt(address2);
+	}
+
+	/**
+	 * @return the branch skipping the jump of the given comparison with zero
+	 *         (after an LCMP), zero if not a comparison
+	 */
+	private static byte negatedBranch(int opcode) {
+		switch (opcode) {
+		case IFEQ:
+			return OpCode.e_op_code_BNE_DAT;
+		case IFNE:
+			return OpCode.e_op_code_BEQ_DAT;
+		case IFLT:
+			return OpCode.e_op_code_BGE_DAT;
+		case IFGE:
+			return OpCode.e_op_code_BLT_DAT;
+		case IFGT:
+			return OpCode.e_op_code_BLE_DAT;
+		case IFLE:
+			return OpCode.e_op_code_BGT_DAT;
+		default:
+			return 0;
+		}
+	}
+
 	/**
 	 * Push the variable on the given address to the stack.
 	 */
@@ -666,8 +948,16 @@ public class Compiler {
 
 		StackVar arg1, arg2, arg3, arg4;
 
+		HashSet<LabelNode> jumpTargets = new HashSet<>();
+		for (AbstractInsnNode insn : m.node.instructions.toArray()) {
+			if (insn instanceof JumpInsnNode)
+				jumpTargets.add(((JumpInsnNode) insn).label);
+		}
+
 		Iterator<AbstractInsnNode> ite = m.node.instructions.iterator();
 		while (ite.hasNext()) {
+			if (lazyLocalsFailed)
+				return; // will be parsed again with locals on the stack
 			AbstractInsnNode insn = ite.next();
 
 			int opcode = insn.getOpcode();
@@ -679,6 +969,8 @@ public class Compiler {
 					LabelNode ln = (LabelNode) insn;
 					labels.put(ln, code.position());
 					logger.debug("label: {}", ln.getLabel());
+					if (jumpTargets.contains(ln))
+						checkLazyLocals(-1);
 				}
 				/*
 				 * else if(insn instanceof LineNumberNode) { LineNumberNode ln =
@@ -708,21 +1000,23 @@ public class Compiler {
 			case ALOAD:
 				if (insn instanceof VarInsnNode) {
 					VarInsnNode vi = (VarInsnNode) insn;
-					if (vi.var > 0) {
+					if (vi.var > 0 && m.localBase >= 0) {
+						int address = m.localBase + vi.var - 1;
+						if (lazyLocals)
+							stack.add(new StackVar(STACK_FIELD, address));
+						else
+							pushVar(m, address);
+					} else if (vi.var > 0) {
 						useLocal = true;
-						// tmpVar2 have the local index, starting at localStart
-						code.put(OpCode.e_op_code_SET_DAT);
+						// tmpVar2 have the local index, relative to the frame on localStart
+						code.put(OpCode.e_op_code_SET_VAL);
 						code.putInt(tmpVar2);
-						code.putInt(localStart);
+						code.putLong(vi.var - 1);
 
-						// increment the index if 2 or higher
-						for (int i = 0; i < vi.var - 1; i++) {
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar2);
-						}
-						// set tmpVar1 using the index on tmpVar2
-						code.put(OpCode.e_op_code_SET_IND);
+						// set tmpVar1 using the frame and the index on tmpVar2
+						code.put(OpCode.e_op_code_SET_IDX);
 						code.putInt(tmpVar1);
+						code.putInt(localStart);
 						code.putInt(tmpVar2);
 
 						pushVar(m, tmpVar1);
@@ -744,25 +1038,27 @@ public class Compiler {
 					if (vi.var == 0)
 						addError(insn, UNEXPECTED_ERROR);
 					// local 0 is 'this', others are stored after 'localStart' variable
-
-					arg1 = popVar(m, tmpVar1, false);
 					logger.debug("store local: " + vi.var);
 
-					// tmpVar2 have the local index, starting at localStart
-					useLocal = true;
-					code.put(OpCode.e_op_code_SET_DAT);
-					code.putInt(tmpVar2);
-					code.putInt(localStart);
+					if (m.localBase >= 0) {
+						int address = m.localBase + vi.var - 1;
+						popVar(m, address, true);
+						checkLazyLocals(address);
+					} else {
+						arg1 = popVar(m, tmpVar1, false);
+
+						// tmpVar2 have the local index, relative to the frame on localStart
+						useLocal = true;
+						code.put(OpCode.e_op_code_SET_VAL);
+						code.putInt(tmpVar2);
+						code.putLong(vi.var - 1);
 
-					// increment the index if 2 or higher
-					for (int i = 0; i < vi.var - 1; i++) {
-						code.put(OpCode.e_op_code_INC_DAT);
+						// set var using the frame and the index on tmpVar2
+						code.put(OpCode.e_op_code_IDX_DAT);
+						code.putInt(localStart);
 						code.putInt(tmpVar2);
+						code.putInt(arg1.address);
 					}
-					// set var using the index on tmpVar2
-					code.put(OpCode.e_op_code_IND_DAT);
-					code.putInt(tmpVar2);
-					code.putInt(arg1.address);
 				} else {
 					addError(insn, UNEXPECTED_ERROR);
 				}
@@ -935,6 +1231,9 @@ public class Compiler {
 				} else if (var.type == STACK_PUSH) {
 					pushVar(m, var.address);
 					pushVar(m, var.address);
+				} else if (var.type == STACK_FIELD) {
+					stack.addLast(new StackVar(STACK_FIELD, var.address));
+					stack.addLast(new StackVar(STACK_FIELD, var.address));
 				} else {
 					addError(insn, UNEXPECTED_ERROR);
 				}
@@ -1156,12 +1455,7 @@ public class Compiler {
 							code.put(OpCode.e_op_code_EXT_FUN);
 							code.putShort(OpCode.Clear_A);
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(arg1.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A2);
-							code.putInt(arg2.address); // address
+							putExtFunDat2(code, OpCode.Set_A1_A2, arg1.address, arg2.address);
 
 							code.put(OpCode.e_op_code_EXT_FUN);
 							code.putShort(OpCode.SHA256_A_To_B);
@@ -1177,18 +1471,8 @@ public class Compiler {
 							arg1 = popVar(m, tmpVar4, false); // input1
 							stack.pollLast(); // remove the 'this'
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(arg1.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A2);
-							code.putInt(arg2.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A3);
-							code.putInt(arg3.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A4);
-							code.putInt(arg4.address); // address
+							putExtFunDat2(code, OpCode.Set_A1_A2, arg1.address, arg2.address);
+							putExtFunDat2(code, OpCode.Set_A3_A4, arg3.address, arg4.address);
 
 							code.put(OpCode.e_op_code_EXT_FUN);
 							code.putShort(OpCode.SHA256_A_To_B);
@@ -1210,6 +1494,7 @@ public class Compiler {
 								StackVar msg = stack.pollLast();
 								int pos = 0;
 								for (int a = 0; a < 4; a++) {
+									int dest = a % 2 == 0 ? tmpVar1 : tmpVar2;
 									long value = 0;
 									for (int i = 0; i < 8; i++, pos++) {
 										if (pos >= msg.svalue.length())
@@ -1219,12 +1504,12 @@ public class Compiler {
 										value += c;
 									}
 									code.put(OpCode.e_op_code_SET_VAL);
-									code.putInt(tmpVar1);
+									code.putInt(dest);
 									code.putLong(value);
 
-									code.put(OpCode.e_op_code_EXT_FUN_DAT);
-									code.putShort((short) (OpCode.Set_A1 + a));
-									code.putInt(tmpVar1);
+									if (a % 2 == 1)
+										putExtFunDat2(code, a == 1 ? OpCode.Set_A1_A2 : OpCode.Set_A3_A4, tmpVar1,
+												tmpVar2);
 								}
 							}
 							else if (mi.desc.equals("(JLbt/Address;)V")) {
@@ -1246,21 +1531,16 @@ public class Compiler {
 								code.put(OpCode.e_op_code_EXT_FUN);
 								code.putShort(OpCode.Clear_A);
 								
-								code.put(OpCode.e_op_code_EXT_FUN_DAT);
-								code.putShort((short) (OpCode.Set_A1));
-								code.putInt(msg.address);
-								code.put(OpCode.e_op_code_EXT_FUN_DAT);
-								code.putShort((short) (OpCode.Set_A2));
-								code.putInt(msg2.address);
+								putExtFunDat2(code, OpCode.Set_A1_A2, msg.address, msg2.address);
 							}
 							else {
 								// We should have received a Register, it is on stack
-								for (int i = 3; i >= 0; i--) {
-									StackVar reg = popVar(m, tmpVar1, false);
-									code.put(OpCode.e_op_code_EXT_FUN_DAT);
-									code.putShort((short) (OpCode.Set_A1 + i));
-									code.putInt(reg.address);
-								}
+								StackVar reg4 = popVar(m, tmpVar1, false);
+								StackVar reg3 = popVar(m, tmpVar2, false);
+								putExtFunDat2(code, OpCode.Set_A3_A4, reg3.address, reg4.address);
+								StackVar reg2 = popVar(m, tmpVar1, false);
+								StackVar reg1 = popVar(m, tmpVar2, false);
+								putExtFunDat2(code, OpCode.Set_A1_A2, reg1.address, reg2.address);
 							}
 
 							code.put(OpCode.e_op_code_EXT_FUN);
@@ -1276,7 +1556,7 @@ public class Compiler {
 							}
 
 							// update the local variable start position to not conflict with this one
-							if (m.node.maxLocals > 1) {
+							if (m.localBase < 0 && m.node.maxLocals > 1) {
 								useLocal = true;
 								code.put(OpCode.e_op_code_SET_VAL);
 								code.putInt(tmpVar1);
@@ -1286,25 +1566,28 @@ public class Compiler {
 								code.putInt(tmpVar1);
 							}
 
-							// load the arguments as local variables, tmpVar2 is the index
-							for (int i = 0; i < mcall.nargs; i++) {
-								if (i == 0) {
-									useLocal = true;
-									code.put(OpCode.e_op_code_SET_DAT);
-									code.putInt(tmpVar2);
-									code.putInt(localStart);
+							// load the arguments as local variables, the last one is on top
+							Type[] argTypes = Type.getArgumentTypes(mcall.node.desc);
+							int argPos = 0;
+							for (Type t : argTypes)
+								argPos += t.getSize();
+							for (int i = argTypes.length - 1; i >= 0; i--) {
+								argPos -= argTypes[i].getSize();
+								if (mcall.localBase >= 0) {
+									popVar(m, mcall.localBase + argPos, true);
+									continue;
 								}
-
 								StackVar argi = popVar(m, tmpVar1, false);
-								code.put(OpCode.e_op_code_IND_DAT);
+
+								// tmpVar2 have the index, relative to the frame on localStart
+								useLocal = true;
+								code.put(OpCode.e_op_code_SET_VAL);
+								code.putInt(tmpVar2);
+								code.putLong(argPos);
+								code.put(OpCode.e_op_code_IDX_DAT);
+								code.putInt(localStart);
 								code.putInt(tmpVar2);
 								code.putInt(argi.address);
-
-								// increment the local postion, not needed if this is the last argument
-								for (int j = 0; i < mcall.nargs - 1 && j < mcall.localArgSize[i]; j++) {
-									code.put(OpCode.e_op_code_INC_DAT);
-									code.putInt(tmpVar2);
-								}
 							}
 							stack.pollLast(); // remove the 'this'
 
@@ -1314,7 +1597,7 @@ public class Compiler {
 							code.putInt(0); // address, to be resolved latter
 
 							// update the local variable start position back
-							if (m.node.maxLocals > 1) {
+							if (m.localBase < 0 && m.node.maxLocals > 1) {
 								code.put(OpCode.e_op_code_SET_VAL);
 								code.putInt(tmpVar1);
 								code.putLong(m.node.maxLocals - 1);
@@ -1402,18 +1685,8 @@ public class Compiler {
 							code.put(OpCode.e_op_code_EXT_FUN);
 							code.putShort(OpCode.Copy_A_From_B);
 							
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B1);
-							code.putInt(arg1.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B2);
-							code.putInt(arg2.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B3);
-							code.putInt(arg3.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B4);
-							code.putInt(arg4.address); // address
+							putExtFunDat2(code, OpCode.Set_B1_B2, arg1.address, arg2.address);
+							putExtFunDat2(code, OpCode.Set_B3_B4, arg3.address, arg4.address);
 							
 							code.put(OpCode.e_op_code_EXT_FUN_RET);
 							code.putShort(OpCode.Check_SHA256_A_With_B);
@@ -1442,59 +1715,24 @@ public class Compiler {
 							code.put(OpCode.e_op_code_EXT_FUN);
 							code.putShort(OpCode.SHA256_A_To_B);
 							
-							// tmpVar1 will be zero if match
+							// tmpVar1 will be one if match, any difference skips to the end
 							code.put(OpCode.e_op_code_CLR_DAT);
 							code.putInt(tmpVar1);
-
-							// check 2
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort((short) (OpCode.Get_B2));
-							code.putInt(tmpVar5);
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(arg2.address);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar1);
-							
-							// check 3
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort((short) (OpCode.Get_B3));
-							code.putInt(tmpVar5);
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(arg3.address);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar1);
-							
-							// check 4
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort((short) (OpCode.Get_B4));
-							code.putInt(tmpVar5);
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(arg4.address);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
+							StackVar[] expected = { arg2, arg3, arg4 };
+							for (int i = 0; i < expected.length; i++) {
+								code.put(OpCode.e_op_code_EXT_FUN_RET);
+								code.putShort((short) (OpCode.Get_B2 + i));
+								code.putInt(tmpVar5);
+								code.put(OpCode.e_op_code_BNE_DAT);
+								code.putInt(tmpVar5);
+								code.putInt(expected[i].address);
+								// skip the next checks and the increment
+								code.put((byte) (10 + (expected.length - 1 - i) * 17 + 5));
+							}
 							code.put(OpCode.e_op_code_INC_DAT);
 							code.putInt(tmpVar1);
-							
-							// tmpVar1 is zero if match, so we return 1 if match
-							code.put(OpCode.e_op_code_CLR_DAT);
-							code.putInt(tmpVar2);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar1);
-							code.put((byte) 0x0b); // offset
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar2);
-							
-							pushVar(m, tmpVar2);
+
+							pushVar(m, tmpVar1);
 							
 						} else if (mi.name.equals("getMessage1")) {
 							arg1 = popVar(m, tmpVar1, false); // the TX address
@@ -1529,24 +1767,23 @@ public class Compiler {
 						} else {
 							addError(insn, UNEXPECTED_ERROR);
 						}
-					} else if (owner.equals(Object.class.getName())) {
+					} else if (owner.equals(Object.class.getName())
+							|| (owner.equals(Address.class.getName()) && mi.name.equals("equals"))) {
+						// Address.equals compares the ids, just like Object.equals on chain
 						if (mi.name.equals("equals")) {
-							arg1 = popVar(m, tmpVar1, true); // the obj 1
+							arg1 = popVar(m, tmpVar1, false); // the obj 1
 							arg2 = popVar(m, tmpVar2, false); // the obj 2
 
-							code.put(OpCode.e_op_code_SUB_DAT);
+							code.put(OpCode.e_op_code_CLR_DAT);
+							code.putInt(tmpVar3);
+							code.put(OpCode.e_op_code_BNE_DAT);
 							code.putInt(arg1.address);
 							code.putInt(arg2.address);
-
-							code.put(OpCode.e_op_code_CLR_DAT);
-							code.putInt(tmpVar2);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar1);
-							code.put((byte) 0x0b); // offset
+							code.put((byte) 15); // offset
 
 							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar2);
-							pushVar(m, tmpVar2);
+							code.putInt(tmpVar3);
+							pushVar(m, tmpVar3);
 						} else {
 							addError(insn, UNEXPECTED_ERROR);
 						}
@@ -1554,7 +1791,7 @@ public class Compiler {
 						StackVar values[] = new StackVar[4];
 						// we should pop the 4 values from stack
 						for (int i = values.length - 1; i >= 0; i--) {
-							values[i] = popVar(m, tmpVar1 + i, true);
+							values[i] = popVar(m, tmpVar1 + i, false);
 						}
 						if (mi.name.startsWith("getValue")) {
 							int pos = Integer.parseInt(mi.name.substring(mi.name.length() - 1)) - 1;
@@ -1564,41 +1801,23 @@ public class Compiler {
 							code.put(OpCode.e_op_code_CLR_DAT);
 							code.putInt(tmpVar5);
 
-							// we have another register on stack
+							// we have another register on stack, any difference skips to the end
+							int branches[] = new int[values.length];
 							for (int i = values.length - 1; i >= 0; i--) {
 								StackVar other = popVar(m, tmpVar6, false);
 
-								code.put(OpCode.e_op_code_SUB_DAT);
+								branches[i] = code.position();
+								code.put(OpCode.e_op_code_BNE_DAT);
 								code.putInt(values[i].address);
 								code.putInt(other.address);
-
-								code.put(OpCode.e_op_code_BNZ_DAT);
-								code.putInt(values[i].address);
-								code.put((byte) 0x0b); // offset
-
-								code.put(OpCode.e_op_code_INC_DAT);
-								code.putInt(tmpVar5);
+								code.put((byte) 0); // offset, set below
 							}
-							// tmpVar 5 must be equal 4
-							code.put(OpCode.e_op_code_SET_VAL);
-							code.putInt(tmpVar1);
-							code.putLong(4L);
-
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(tmpVar1);
-
-							code.put(OpCode.e_op_code_CLR_DAT);
-							code.putInt(tmpVar2);
-
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
-
 							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar2);
+							code.putInt(tmpVar5);
+							for (int branch : branches)
+								code.put(branch + 9, (byte) (code.position() - branch));
 
-							pushVar(m, tmpVar2);
+							pushVar(m, tmpVar5);
 						} else
 							addError(insn, "Method not implemented: " + mi.name);
 					} else {
@@ -1664,6 +1883,23 @@ public class Compiler {
 			case LCMP: // push 0 if the two longs are the same, 1 if value1 is greater than value2, -1
 						// otherwise
 				arg2 = popVar(m, tmpVar2, false);
+				if (insn.getNext() instanceof JumpInsnNode && negatedBranch(insn.getNext().getOpcode()) != 0) {
+					// compare and branch on the values directly, no subtraction (nor overflow)
+					JumpInsnNode jmp = (JumpInsnNode) ite.next();
+					arg1 = popVar(m, tmpVar1, false);
+
+					code.put(negatedBranch(jmp.getOpcode()));
+					code.putInt(arg1.address);
+					code.putInt(arg2.address);
+					code.put((byte) 15); // offset
+
+					code.put(OpCode.e_op_code_JMP_ADR);
+					m.jumps.add(new Method.Jump(code.position(), jmp.label));
+					code.putInt(0); // to be resolved later
+
+					logger.debug("lcmp: " + jmp.label.getLabel());
+					break;
+				}
 				arg1 = popVar(m, tmpVar1, true);
 				code.put(OpCode.e_op_code_SUB_DAT);
 				code.putInt(arg1.address);
@@ -1748,17 +1984,14 @@ public class Compiler {
 				if (insn instanceof JumpInsnNode) {
 					JumpInsnNode jmp = (JumpInsnNode) insn;
 
-					arg1 = popVar(m, tmpVar1, true);
+					arg1 = popVar(m, tmpVar1, false);
 					arg2 = popVar(m, tmpVar2, false);
 
-					code.put(OpCode.e_op_code_SUB_DAT);
+					code.put(opcode == IF_ACMPEQ || opcode == IF_ICMPEQ ? OpCode.e_op_code_BNE_DAT
+							: OpCode.e_op_code_BEQ_DAT);
 					code.putInt(arg1.address);
 					code.putInt(arg2.address);
-
-					code.put(opcode == IF_ACMPEQ || opcode == IF_ICMPEQ ? OpCode.e_op_code_BNZ_DAT
-							: OpCode.e_op_code_BZR_DAT);
-					code.putInt(arg1.address);
-					code.put((byte) 11); // offset
+					code.put((byte) 15); // offset
 
 					code.put(OpCode.e_op_code_JMP_ADR);
 					m.jumps.add(new Method.Jump(code.position(), jmp.label));
@@ -0,0 +1,342 @@
+package bt.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import bt.Contract;
+
+/**
+ * Cache of compiled contracts.
+ *
+ * Entries are keyed by the SHA-256 of the class file bytes, the
+ * {@link Compiler#currentVersion}, the {@link Compiler#CODE_REVISION} and if
+ * the optimizer is enabled, so a changed class or compiler always compiles
+ * again. Compiled contracts are kept in memory with LRU eviction and,
+ * optionally, in a directory so they survive between runs.
+ *
+ * Only contracts compiled without errors are cached. The compilers returned
+ * are shared, they should not be compiled or linked again.
+ *
+ * @author jjos
+ */
+public class CompilerCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+
+	private static final int FORMAT_VERSION = 3;
+	private static final String FILE_EXTENSION = ".atc";
+
+	private static Logger logger = LogManager.getLogger();
+
+	private static final CompilerCache instance = new CompilerCache(DEFAULT_MAX_ENTRIES, null);
+
+	private final LinkedHashMap<String, Compiler> entries;
+	private File directory;
+
+	/**
+	 * @param maxEntries the maximum number of compiled contracts kept in memory
+	 * @param directory  the directory to store compiled contracts or null for
+	 *                   memory only
+	 */
+	public CompilerCache(int maxEntries, File directory) {
+		this.directory = directory;
+		this.entries = new LinkedHashMap<String, Compiler>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Compiler> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the cache used by {@link bt.BT#compileContract(Class)}
+	 */
+	public static CompilerCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Sets the directory to store compiled contracts, null for memory only.
+	 */
+	public synchronized void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Compiles the given contract, reusing a previous compilation if the class
+	 * did not change.
+	 *
+	 * The contract is linked only if there are no compile errors.
+	 *
+	 * @return the compiled contract
+	 * @throws IOException if the class file cannot be read
+	 */
+	public Compiler compile(Class<? extends Contract> clazz) throws IOException {
+		return compile(clazz, true);
+	}
+
+	/**
+	 * Compiles the given contract, reusing a previous compilation if the class
+	 * did not change.
+	 *
+	 * @param optimize if the optimizer should run, see
+	 *                 {@link Compiler#setOptimize(boolean)}
+	 * @return the compiled contract
+	 * @throws IOException if the class file cannot be read
+	 */
+	public Compiler compile(Class<? extends Contract> clazz, boolean optimize) throws IOException {
+		byte[] classBytes = readClass(clazz);
+		String key = key(classBytes, optimize);
+
+		Compiler comp;
+		synchronized (this) {
+			comp = entries.get(key);
+		}
+		if (comp != null)
+			return comp;
+
+		comp = load(clazz, classBytes, key);
+		if (comp == null) {
+			comp = new Compiler(clazz, classBytes);
+			comp.setOptimize(optimize);
+			comp.compile();
+			if (comp.getErrors().size() > 0)
+				return comp;
+			comp.link();
+			store(comp, key);
+		}
+
+		synchronized (this) {
+			entries.put(key, comp);
+		}
+		return comp;
+	}
+
+	private static byte[] readClass(Class<? extends Contract> clazz) throws IOException {
+		String resource = clazz.getName().replace('.', '/') + ".class";
+		ClassLoader loader = clazz.getClassLoader();
+		InputStream in = loader != null ? loader.getResourceAsStream(resource)
+				: ClassLoader.getSystemResourceAsStream(resource);
+		if (in == null)
+			throw new IOException("Class file not found: " + resource);
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	static String key(byte[] classBytes, boolean optimize) {
+		try {
+			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			byte[] hash = sha256.digest(classBytes);
+			StringBuilder sb = new StringBuilder();
+			for (byte b : hash)
+				sb.append(String.format("%02x", b));
+			sb.append('-').append(Compiler.currentVersion.name());
+			sb.append("-r").append(Compiler.CODE_REVISION);
+			if (!optimize)
+				sb.append("-plain");
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// not expected to reach that point
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Compiler load(Class<? extends Contract> clazz, byte[] classBytes, String key) {
+		File dir = directory;
+		if (dir == null)
+			return null;
+		File file = new File(dir, key + FILE_EXTENSION);
+		if (!file.exists())
+			return null;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FORMAT_VERSION)
+				return null;
+			Compiler comp = new Compiler(clazz, classBytes);
+			read(comp, in);
+			return comp;
+		} catch (Exception e) {
+			logger.warn("Could not read cached contract {}: {}", file, e.getMessage());
+			return null;
+		}
+	}
+
+	private void store(Compiler comp, String key) {
+		File dir = directory;
+		if (dir == null)
+			return;
+		dir.mkdirs();
+		File tmp = new File(dir, key + FILE_EXTENSION + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(FORMAT_VERSION);
+			write(comp, out);
+		} catch (IOException e) {
+			logger.warn("Could not store cached contract {}: {}", tmp, e.getMessage());
+			tmp.delete();
+			return;
+		}
+		File file = new File(dir, key + FILE_EXTENSION);
+		if (!tmp.renameTo(file))
+			tmp.delete();
+	}
+
+	private static void write(Compiler comp, DataOutputStream out) throws IOException {
+		writeBytes(out, comp.getCode());
+
+		out.writeInt(comp.lastFreeVar);
+		out.writeInt(comp.lastTxReceived);
+		out.writeInt(comp.lastTxTimestamp);
+		out.writeInt(comp.lastTxSender);
+		out.writeInt(comp.lastTxAmount);
+		out.writeInt(comp.tmpVar1);
+		out.writeInt(comp.tmpVar2);
+		out.writeInt(comp.tmpVar3);
+		out.writeInt(comp.tmpVar4);
+		out.writeInt(comp.tmpVar5);
+		out.writeInt(comp.tmpVar6);
+		out.writeInt(comp.localStart);
+		out.writeInt(comp.creator);
+		out.writeBoolean(comp.useLocal);
+		out.writeBoolean(comp.useCreator);
+		out.writeBoolean(comp.hasPublicMethods);
+		out.writeBoolean(comp.hasTxReceived);
+
+		out.writeInt(comp.fields.size());
+		for (Field f : comp.fields.values()) {
+			out.writeUTF(f.node.name);
+			out.writeInt(f.size);
+			out.writeInt(f.address);
+		}
+
+		out.writeInt(comp.methods.size());
+		for (Method m : comp.methods.values()) {
+			out.writeUTF(m.node.name);
+			out.writeUTF(m.node.desc);
+			out.writeInt(m.nargs);
+			for (int i = 0; i < Method.MAX_ARGS; i++) {
+				out.writeInt(m.localArgPos[i]);
+				out.writeInt(m.localArgSize[i]);
+			}
+			out.writeInt(m.localArgTotal);
+			out.writeLong(m.hash);
+			out.writeInt(m.address);
+			out.writeInt(m.localBase);
+			byte[] code = new byte[m.code.position()];
+			System.arraycopy(m.code.array(), 0, code, 0, code.length);
+			writeBytes(out, code);
+		}
+	}
+
+	private static void read(Compiler comp, DataInputStream in) throws IOException {
+		comp.code = toBuffer(readBytes(in));
+
+		comp.lastFreeVar = in.readInt();
+		comp.lastTxReceived = in.readInt();
+		comp.lastTxTimestamp = in.readInt();
+		comp.lastTxSender = in.readInt();
+		comp.lastTxAmount = in.readInt();
+		comp.tmpVar1 = in.readInt();
+		comp.tmpVar2 = in.readInt();
+		comp.tmpVar3 = in.readInt();
+		comp.tmpVar4 = in.readInt();
+		comp.tmpVar5 = in.readInt();
+		comp.tmpVar6 = in.readInt();
+		comp.localStart = in.readInt();
+		comp.creator = in.readInt();
+		comp.useLocal = in.readBoolean();
+		comp.useCreator = in.readBoolean();
+		comp.hasPublicMethods = in.readBoolean();
+		comp.hasTxReceived = in.readBoolean();
+
+		int nfields = in.readInt();
+		for (int i = 0; i < nfields; i++) {
+			Field f = new Field();
+			String name = in.readUTF();
+			for (FieldNode fn : comp.cn.fields) {
+				if (fn.name.equals(name))
+					f.node = fn;
+			}
+			if (f.node == null)
+				throw new IOException("Field not found: " + name);
+			f.size = in.readInt();
+			f.address = in.readInt();
+			comp.fields.put(name, f);
+		}
+
+		int nmethods = in.readInt();
+		for (int i = 0; i < nmethods; i++) {
+			Method m = new Method();
+			String name = in.readUTF();
+			String desc = in.readUTF();
+			for (MethodNode mn : comp.cn.methods) {
+				if (mn.name.equals(name) && mn.desc.equals(desc))
+					m.node = mn;
+			}
+			if (m.node == null)
+				throw new IOException("Method not found: " + name + desc);
+			m.nargs = in.readInt();
+			for (int j = 0; j < Method.MAX_ARGS; j++) {
+				m.localArgPos[j] = in.readInt();
+				m.localArgSize[j] = in.readInt();
+			}
+			m.localArgTotal = in.readInt();
+			m.hash = in.readLong();
+			m.address = in.readInt();
+			m.localBase = in.readInt();
+			m.code = toBuffer(readBytes(in));
+			comp.methods.put(name, m);
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static ByteBuffer toBuffer(byte[] bytes) {
+		ByteBuffer b = ByteBuffer.allocate(Math.max(bytes.length, 40 * Compiler.PAGE_SIZE));
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		b.put(bytes);
+		return b;
+	}
+}
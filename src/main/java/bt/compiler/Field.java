@@ -25,4 +25,8 @@ public class Field {
 	public int getAddress(){
 		return address;
 	}
+
+	public FieldNode getNode() {
+		return node;
+	}
 }
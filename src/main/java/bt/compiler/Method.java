@@ -66,4 +66,6 @@ public class Method {
 	long hash;
 	
 	int address;
+	/** Address of local variable 1, -1 if locals are on a stack frame (recursive method) */
+	int localBase = -1;
 }
@@ -0,0 +1,1192 @@
+package bt.compiler;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+
+/**
+ * Peephole optimizer for the code of a single {@link Method}.
+ *
+ * Runs after {@link Compiler#parseMethod} and before {@link Compiler#link()},
+ * working on a decoded instruction list. Labels, absolute jumps (resolved later
+ * on link) and relative branches are kept pointing to the right instructions.
+ *
+ * The optimizations performed are:
+ * <ul>
+ * <li>PSH_DAT/POP_DAT pairs replaced by a SET_DAT (or nothing)</li>
+ * <li>values kept on the user stack inside a basic block moved to temporary
+ * slots, see {@link #allocateStackSlots()}</li>
+ * <li>redundant SET_DAT copies removed, results copied to another variable
+ * written there directly</li>
+ * <li>dead stores to the temporary variables removed</li>
+ * <li>jumps to jumps redirected and jumps to the next instruction removed</li>
+ * <li>code not reachable from the method start removed</li>
+ * <li>arithmetic on constants folded and operations with neutral or cheaper
+ * constants simplified (adding 1 becomes an INC_DAT and a XOR with -1 a
+ * NOT_DAT, for instance)</li>
+ * </ul>
+ *
+ * After all methods are optimized, calls to small methods and to methods called
+ * only once are inlined, see {@link #inline(Compiler)}.
+ *
+ * Indirect reads and writes (SET_IND, IND_DAT, etc.) are assumed to address
+ * only the local variables, never the temporary ones.
+ *
+ * @author jjos
+ */
+class Optimizer {
+
+	static class Instruction {
+		byte op;
+		byte[] bytes;
+		/** position in the original code */
+		int position;
+		/** target of a relative branch */
+		Instruction target;
+		/** absolute jump, resolved on link */
+		Method.Jump jump;
+		/** offset of the absolute jump address */
+		int jumpOffset;
+		ArrayList<LabelNode> labels = new ArrayList<>();
+		/** number of relative branches to this instruction */
+		int branches;
+
+		Instruction(byte op, byte[] bytes, int position) {
+			this.op = op;
+			this.bytes = bytes;
+			this.position = position;
+		}
+
+		int getInt(int offset) {
+			return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16
+					| (bytes[offset + 3] & 0xff) << 24;
+		}
+
+		long getLong(int offset) {
+			return (getInt(offset) & 0xffffffffL) | ((long) getInt(offset + 4)) << 32;
+		}
+
+		short getShort(int offset) {
+			return (short) ((bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8);
+		}
+
+		boolean isTarget() {
+			return labels.size() > 0 || branches > 0;
+		}
+
+		boolean isBranch() {
+			return target != null;
+		}
+	}
+
+	private final Compiler compiler;
+	private final Method method;
+	private final HashSet<Integer> tmpVars = new HashSet<>();
+
+	ArrayList<Instruction> code = new ArrayList<>();
+	/** sentinel after the last instruction, may hold labels */
+	Instruction end;
+
+	Optimizer(Compiler compiler, Method method) {
+		this.compiler = compiler;
+		this.method = method;
+		tmpVars.add(compiler.tmpVar1);
+		tmpVars.add(compiler.tmpVar2);
+		tmpVars.add(compiler.tmpVar3);
+		tmpVars.add(compiler.tmpVar4);
+		tmpVars.add(compiler.tmpVar5);
+		tmpVars.add(compiler.tmpVar6);
+		tmpVars.addAll(compiler.tmpSlots);
+	}
+
+	/**
+	 * Optimizes the code of the given method, it is left untouched if the code
+	 * cannot be decoded.
+	 */
+	static void optimize(Compiler compiler, Method method) {
+		Optimizer opt = new Optimizer(compiler, method);
+		if (!opt.decode())
+			return;
+		opt.run();
+		opt.encode();
+	}
+
+	boolean decode() {
+		byte[] bytes = method.code.array();
+		int length = method.code.position();
+
+		HashMap<Integer, Instruction> byPosition = new HashMap<>();
+		int p = 0;
+		while (p < length) {
+			int size = OpCode.getSize(bytes[p]);
+			if (size == 0 || p + size > length)
+				return false;
+			byte[] insn = new byte[size];
+			System.arraycopy(bytes, p, insn, 0, size);
+			Instruction i = new Instruction(bytes[p], insn, p);
+			code.add(i);
+			byPosition.put(p, i);
+			p += size;
+		}
+		end = new Instruction(OpCode.e_op_code_NOP, new byte[0], length);
+		byPosition.put(length, end);
+
+		// relative branches
+		for (Instruction i : code) {
+			int offsetPos = branchOffsetPosition(i.op);
+			if (offsetPos < 0)
+				continue;
+			Instruction target = byPosition.get(i.position + i.bytes[offsetPos]);
+			if (target == null || target == i)
+				return false;
+			i.target = target;
+			target.branches++;
+		}
+
+		// absolute jumps
+		for (Method.Jump j : method.jumps) {
+			Instruction found = null;
+			for (Instruction i : code) {
+				if (j.position > i.position && j.position + 4 <= i.position + i.bytes.length) {
+					found = i;
+					break;
+				}
+			}
+			if (found == null || found.jump != null)
+				return false;
+			found.jump = j;
+			found.jumpOffset = j.position - found.position;
+		}
+
+		// labels, only the ones jumped to (the others, like line numbers, do not
+		// start a new block)
+		HashSet<LabelNode> jumped = new HashSet<>();
+		for (Method.Jump j : method.jumps) {
+			if (j.label != null)
+				jumped.add(j.label);
+		}
+		for (AbstractInsnNode insn : method.node.instructions.toArray()) {
+			if (!(insn instanceof LabelNode) || !jumped.contains(insn))
+				continue;
+			Integer position = compiler.labels.get(insn);
+			if (position == null)
+				continue;
+			Instruction i = byPosition.get(position);
+			if (i == null)
+				return false;
+			i.labels.add((LabelNode) insn);
+		}
+		return true;
+	}
+
+	/** Methods up to this size (in bytes) are inlined on every call */
+	static final int INLINE_SIZE = 48;
+
+	/**
+	 * Replaces the JMP_SUB calls to small methods, and to methods called only
+	 * once, by a copy of their code. The arguments are already passed on the
+	 * callee local variables and the return value on the user stack, so the
+	 * copy works as it is: returns in the middle become jumps to the end and
+	 * the PSH_DAT/POP_DAT of the return value is then optimized away.
+	 *
+	 * Only methods with fixed addresses for their locals (not recursive) are
+	 * inlined. Private methods left without calls are not linked, see
+	 * {@link Compiler#link()}.
+	 */
+	static void inline(Compiler compiler) {
+		HashMap<Method, Optimizer> decoded = new HashMap<>();
+		HashMap<Method, Integer> calls = new HashMap<>();
+		for (Method m : compiler.getMethods()) {
+			Optimizer opt = new Optimizer(compiler, m);
+			if (!opt.decode())
+				return;
+			decoded.put(m, opt);
+			for (Instruction i : opt.code) {
+				if (i.op == OpCode.e_op_code_JMP_SUB && i.jump != null && i.jump.method != null)
+					calls.merge(i.jump.method, 1, Integer::sum);
+			}
+		}
+
+		for (Method m : compiler.getMethods()) {
+			Optimizer opt = decoded.get(m);
+			ArrayList<Method.Jump> jumps = new ArrayList<>(m.jumps);
+			int ninlined = 0;
+			for (int k = 0; k < opt.code.size(); k++) {
+				Instruction i = opt.code.get(k);
+				if (i.op != OpCode.e_op_code_JMP_SUB || i.jump == null || i.jump.method == null)
+					continue;
+				Method callee = i.jump.method;
+				Optimizer body = decoded.get(callee);
+				if (callee == m || !canInline(callee, body)
+						|| (body.method.code.position() > INLINE_SIZE && calls.get(callee) > 1))
+					continue;
+				k += opt.inlineAt(k, body) - 1;
+				ninlined++;
+			}
+			if (ninlined == 0)
+				continue;
+			opt.run();
+			if (!opt.encode()) {
+				// branches too far now, keep the calls
+				m.jumps.clear();
+				m.jumps.addAll(jumps);
+			}
+		}
+	}
+
+	private static boolean canInline(Method callee, Optimizer body) {
+		if (callee.localBase < 0 || body == null || body.code.isEmpty()
+				|| body.code.get(body.code.size() - 1).op != OpCode.e_op_code_RET_SUB)
+			return false;
+		for (Instruction i : body.code) {
+			// absolute addresses of the method itself
+			if (i.op == OpCode.e_op_code_SET_PCS || i.op == OpCode.e_op_code_ERR_ADR)
+				return false;
+			if (i.op == OpCode.e_op_code_JMP_SUB && i.jump != null && i.jump.method == callee)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the call at the given index by a copy of the given method body.
+	 *
+	 * @return the number of instructions inserted
+	 */
+	private int inlineAt(int index, Optimizer body) {
+		Instruction call = code.get(index);
+		Instruction next = index + 1 < code.size() ? code.get(index + 1) : end;
+		LabelNode endLabel = null;
+
+		// copy the instructions, with new labels
+		IdentityHashMap<Instruction, Instruction> copies = new IdentityHashMap<>();
+		IdentityHashMap<LabelNode, LabelNode> labelCopies = new IdentityHashMap<>();
+		ArrayList<Instruction> inserted = new ArrayList<>();
+		int last = body.code.size() - 1;
+		for (int k = 0; k <= last; k++) {
+			Instruction i = body.code.get(k);
+			Instruction copy;
+			if (i.op == OpCode.e_op_code_RET_SUB && k == last) {
+				// falls through to the instruction after the call
+				copy = next;
+			} else if (i.op == OpCode.e_op_code_RET_SUB) {
+				if (endLabel == null) {
+					endLabel = new LabelNode();
+					next.labels.add(endLabel);
+				}
+				copy = new Instruction(OpCode.e_op_code_JMP_ADR, unary(OpCode.e_op_code_JMP_ADR, 0), 0);
+				copy.jump = new Method.Jump(0, endLabel);
+				copy.jumpOffset = 1;
+				method.jumps.add(copy.jump);
+				inserted.add(copy);
+			} else {
+				copy = new Instruction(i.op, i.bytes.clone(), 0);
+				if (i.jump != null) {
+					copy.jump = i.jump.method != null ? new Method.Jump(0, i.jump.method)
+							: new Method.Jump(0, labelCopies.computeIfAbsent(i.jump.label, l -> new LabelNode()));
+					copy.jumpOffset = i.jumpOffset;
+					method.jumps.add(copy.jump);
+				}
+				inserted.add(copy);
+			}
+			for (LabelNode l : i.labels)
+				copy.labels.add(labelCopies.computeIfAbsent(l, x -> new LabelNode()));
+			copies.put(i, copy);
+		}
+		for (Instruction i : body.code) {
+			if (i.target == null)
+				continue;
+			Instruction copy = copies.get(i);
+			copy.target = copies.get(i.target);
+			copy.target.branches++;
+		}
+
+		code.addAll(index + 1, inserted);
+		remove(index);
+		return inserted.size();
+	}
+
+	void run() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			changed |= removePushPop();
+			changed |= allocateStackSlots();
+			changed |= removeRedundantCopies();
+			changed |= threadJumps();
+			changed |= foldConstants();
+			changed |= removeDeadStores();
+			changed |= removeUnreachable();
+		}
+	}
+
+	/**
+	 * Puts the instructions back on the method code.
+	 *
+	 * @return false if not possible, relative branches would not fit
+	 */
+	boolean encode() {
+		int position = 0;
+		for (Instruction i : code) {
+			i.position = position;
+			position += i.bytes.length;
+		}
+		end.position = position;
+
+		// check the relative offsets still fit
+		for (Instruction i : code) {
+			if (i.target != null) {
+				int offset = i.target.position - i.position;
+				if (offset < Byte.MIN_VALUE || offset > Byte.MAX_VALUE)
+					return false;
+			}
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(method.code.capacity());
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		ArrayList<Instruction> all = new ArrayList<>(code);
+		all.add(end);
+		for (Instruction i : all) {
+			if (i.target != null)
+				i.bytes[branchOffsetPosition(i.op)] = (byte) (i.target.position - i.position);
+			if (i.jump != null)
+				i.jump.position = i.position + i.jumpOffset;
+			for (LabelNode l : i.labels)
+				compiler.labels.put(l, i.position);
+			buffer.put(i.bytes);
+		}
+		method.code = buffer;
+		return true;
+	}
+
+	/**
+	 * Removes the instruction at the given index, labels and branches move to the
+	 * next one.
+	 */
+	private void remove(int index) {
+		Instruction removed = code.remove(index);
+		Instruction next = index < code.size() ? code.get(index) : end;
+		next.labels.addAll(removed.labels);
+		next.branches += removed.branches;
+		for (Instruction i : code) {
+			if (i.target == removed)
+				i.target = next;
+		}
+		if (removed.target != null)
+			removed.target.branches--;
+		if (removed.jump != null)
+			method.jumps.remove(removed.jump);
+	}
+
+	/**
+	 * Replaces the instruction at the given index, keeping labels and branches.
+	 */
+	private void replace(int index, byte[] bytes) {
+		Instruction old = code.get(index);
+		Instruction i = new Instruction(bytes[0], bytes, old.position);
+		i.labels = old.labels;
+		i.branches = old.branches;
+		code.set(index, i);
+		for (Instruction c : code) {
+			if (c.target == old)
+				c.target = i;
+		}
+	}
+
+	private boolean removePushPop() {
+		boolean changed = false;
+		for (int k = 0; k + 1 < code.size(); k++) {
+			Instruction push = code.get(k);
+			Instruction pop = code.get(k + 1);
+			if (push.op != OpCode.e_op_code_PSH_DAT || pop.op != OpCode.e_op_code_POP_DAT || pop.isTarget())
+				continue;
+			int src = push.getInt(1);
+			int dest = pop.getInt(1);
+
+			remove(k + 1);
+			if (src == dest)
+				remove(k);
+			else
+				replace(k, setDat(dest, src));
+			changed = true;
+		}
+		return changed;
+	}
+
+	private boolean removeRedundantCopies() {
+		boolean changed = false;
+		for (int k = 0; k < code.size(); k++) {
+			Instruction i = code.get(k);
+			if (i.op != OpCode.e_op_code_SET_DAT)
+				continue;
+			int dest = i.getInt(1);
+			int src = i.getInt(5);
+			if (dest == src) {
+				// copy to itself
+				remove(k--);
+				changed = true;
+				continue;
+			}
+			if (k + 1 < code.size()) {
+				Instruction next = code.get(k + 1);
+				if (next.op == OpCode.e_op_code_SET_DAT && !next.isTarget() && next.getInt(1) == src
+						&& next.getInt(5) == dest) {
+					// copy back
+					remove(k + 1);
+					changed = true;
+				}
+			}
+			if (k > 0 && !i.isTarget() && tmpVars.contains(src) && isDeadAfter(k, src)) {
+				Instruction prev = code.get(k - 1);
+				int offset = resultPosition(prev.op);
+				if (offset > 0 && prev.getInt(offset) == src) {
+					// the result is written directly where it is copied to
+					byte[] bytes = prev.bytes.clone();
+					putInt(bytes, offset, dest);
+					replace(k - 1, bytes);
+					remove(k--);
+					changed = true;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Replaces the values kept on the user stack inside a basic block, a
+	 * PSH_DAT and the matching POP_DAT, by direct copies.
+	 * 
+	 * If the pushed variable is not changed until the pop, the pop becomes a
+	 * SET_DAT from it (or nothing if popping to the same variable). If it is a
+	 * temporary variable changed in between, and these new values are not used
+	 * after the pop, they are moved to a free temporary slot instead, so the
+	 * pushed value stays where it is.
+	 * 
+	 * Slots are allocated on {@link Compiler#tmpSlots}, shared by all methods: a
+	 * slot is free if not used between the new value and the pop and its value
+	 * is not read after the pop, see {@link #isLiveAfter(int, int)}.
+	 */
+	private boolean allocateStackSlots() {
+		boolean changed = false;
+		ArrayList<Integer> pushes = new ArrayList<>();
+		for (int k = 0; k < code.size(); k++) {
+			Instruction i = code.get(k);
+			if (i.isTarget())
+				pushes.clear();
+			if (i.op == OpCode.e_op_code_PSH_DAT)
+				pushes.add(k);
+			else if (i.op == OpCode.e_op_code_POP_DAT && !pushes.isEmpty()) {
+				int push = pushes.remove(pushes.size() - 1);
+				int size = code.size();
+				if (removeStackPair(push, k)) {
+					// the push was removed, the pop replaced or removed too
+					k -= size - code.size();
+					changed = true;
+				}
+			}
+			if (isBlockEnd(i.op))
+				pushes.clear();
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes the given push and replaces the matching pop, both on the same
+	 * block.
+	 *
+	 * @return false if not possible
+	 */
+	private boolean removeStackPair(int push, int pop) {
+		int src = code.get(push).getInt(1);
+		int dest = code.get(pop).getInt(1);
+		boolean tmp = tmpVars.contains(src);
+
+		int first = -1;
+		for (int k = push + 1; k < pop; k++) {
+			Instruction i = code.get(k);
+			if (!tmp && (i.op == OpCode.e_op_code_IND_DAT || i.op == OpCode.e_op_code_IDX_DAT))
+				return false; // could be changing it
+			if (first < 0 && written(i) == src)
+				first = k;
+		}
+
+		if (first >= 0) {
+			// the new values go to a slot, the first one cannot depend on the old
+			int[] reads = new int[3];
+			int nreads = read(code.get(first), reads);
+			for (int r = 0; r < nreads; r++)
+				if (reads[r] == src)
+					return false;
+			// the new values may be still needed after the pop
+			if (!tmp || (src != dest && !isDeadAfter(pop, src)))
+				return false;
+
+			int slot = -1;
+			for (int candidate : compiler.tmpSlots) {
+				if (!isReferenced(candidate, first, pop) && !isLiveAfter(pop, candidate)) {
+					slot = candidate;
+					break;
+				}
+			}
+			if (slot < 0) {
+				slot = compiler.lastFreeVar++;
+				compiler.tmpSlots.add(slot);
+				tmpVars.add(slot);
+			}
+			for (int k = first; k < pop; k++)
+				rename(code.get(k), src, slot);
+		}
+
+		if (src == dest)
+			remove(pop);
+		else
+			replace(pop, setDat(dest, src));
+		remove(push);
+		return true;
+	}
+
+	/**
+	 * @return true if the given address is directly used by an instruction in
+	 *         the given range, inclusive
+	 */
+	private boolean isReferenced(int address, int from, int to) {
+		for (int k = from; k <= to; k++) {
+			Instruction i = code.get(k);
+			for (int offset : addressPositions(i.op))
+				if (i.getInt(offset) == address)
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Changes the direct uses of an address by another.
+	 */
+	private static void rename(Instruction i, int from, int to) {
+		for (int offset : addressPositions(i.op)) {
+			if (i.getInt(offset) == from)
+				putInt(i.bytes, offset, to);
+		}
+	}
+
+	private boolean threadJumps() {
+		boolean changed = false;
+		for (int k = 0; k < code.size(); k++) {
+			Instruction i = code.get(k);
+			if (i.op != OpCode.e_op_code_JMP_ADR || i.jump == null || i.jump.label == null)
+				continue;
+
+			// follow the chain of jumps, limited to avoid loops
+			for (int n = 0; n < code.size(); n++) {
+				Instruction target = findLabel(i.jump.label);
+				if (target == null || target == i || target.op != OpCode.e_op_code_JMP_ADR || target.jump == null
+						|| target.jump.label == null || target.jump.label == i.jump.label)
+					break;
+				i.jump.label = target.jump.label;
+				changed = true;
+			}
+
+			Instruction next = k + 1 < code.size() ? code.get(k + 1) : end;
+			if (next.labels.contains(i.jump.label)) {
+				// jump to the next instruction
+				remove(k--);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private Instruction findLabel(LabelNode label) {
+		for (Instruction i : code) {
+			if (i.labels.contains(label))
+				return i;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the instructions not reachable from the method start, like the
+	 * code after an unconditional jump or return that nothing branches to.
+	 */
+	private boolean removeUnreachable() {
+		IdentityHashMap<Instruction, Integer> indexes = indexes();
+		boolean[] reachable = new boolean[code.size()];
+		ArrayList<Integer> pending = new ArrayList<>();
+		pending.add(0);
+		while (!pending.isEmpty()) {
+			int k = pending.remove(pending.size() - 1);
+			if (k >= code.size() || reachable[k])
+				continue;
+			reachable[k] = true;
+			addSuccessors(k, indexes, pending);
+		}
+
+		boolean changed = false;
+		for (int k = code.size() - 1; k >= 0; k--) {
+			if (!reachable[k]) {
+				remove(k);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private IdentityHashMap<Instruction, Integer> indexes() {
+		IdentityHashMap<Instruction, Integer> indexes = new IdentityHashMap<>();
+		for (int k = 0; k < code.size(); k++)
+			indexes.put(code.get(k), k);
+		return indexes;
+	}
+
+	/**
+	 * Adds the indexes of the instructions that can run after the given one, the
+	 * code size for the method end.
+	 *
+	 * @return false if a branch or jump target is not on this method
+	 */
+	private boolean addSuccessors(int k, IdentityHashMap<Instruction, Integer> indexes, ArrayList<Integer> dest) {
+		Instruction i = code.get(k);
+		boolean found = true;
+		if (i.target != null) {
+			Integer target = indexes.get(i.target);
+			if (target != null)
+				dest.add(target);
+			found = target != null;
+		}
+		if (i.jump != null && i.jump.label != null) {
+			Instruction target = findLabel(i.jump.label);
+			if (target != null)
+				dest.add(indexes.get(target));
+			found &= target != null;
+		}
+		if (i.op != OpCode.e_op_code_JMP_ADR && i.op != OpCode.e_op_code_RET_SUB
+				&& i.op != OpCode.e_op_code_FIN_IMD)
+			dest.add(k + 1);
+		return found;
+	}
+
+	/**
+	 * Removes writes to temporary variables that are overwritten before being
+	 * read, inside each basic block.
+	 */
+	private boolean removeDeadStores() {
+		boolean changed = false;
+		HashSet<Integer> dead = new HashSet<>();
+		int[] reads = new int[3];
+		for (int k = code.size() - 1; k >= 0; k--) {
+			Instruction i = code.get(k);
+			if (isBlockEnd(i.op))
+				dead.clear();
+
+			int written = written(i);
+			if (isPureStore(i.op) && dead.contains(written)) {
+				if (i.isTarget()) {
+					// keep the labels, the next instruction is on the same block
+					dead.clear();
+				}
+				remove(k);
+				changed = true;
+				continue;
+			}
+
+			if (written >= 0 && tmpVars.contains(written))
+				dead.add(written);
+			int nreads = read(i, reads);
+			for (int r = 0; r < nreads; r++)
+				dead.remove(reads[r]);
+
+			if (i.isTarget())
+				dead.clear();
+		}
+		return changed;
+	}
+
+	/**
+	 * Tracks the constant values of the temporary variables inside each basic
+	 * block, folding the arithmetic on them. Operations with a constant operand
+	 * are simplified when it saves a step, the constant loads left unused are
+	 * then removed as dead stores.
+	 * 
+	 * Only operations that cost a step less are rewritten: every instruction
+	 * costs the same, so a multiplication by a power of two is kept as it is
+	 * (and divisions or remainders by powers of two would not even be the same
+	 * as shifts for negative values).
+	 */
+	private boolean foldConstants() {
+		boolean changed = false;
+		HashMap<Integer, Long> known = new HashMap<>();
+		for (int k = 0; k < code.size(); k++) {
+			Instruction i = code.get(k);
+			if (i.isTarget())
+				known.clear();
+
+			int written = written(i);
+			switch (i.op) {
+			case OpCode.e_op_code_SET_VAL:
+				known.put(written, i.getLong(5));
+				break;
+			case OpCode.e_op_code_CLR_DAT:
+				known.put(written, 0L);
+				break;
+			case OpCode.e_op_code_SET_DAT: {
+				Long v = known.get(i.getInt(5));
+				if (v != null && isDeadAfter(k, i.getInt(5))) {
+					// the constant is set directly, the one copied is not needed
+					replace(k, setVal(written, v));
+					changed = true;
+				}
+				known.put(written, v);
+				break;
+			}
+			case OpCode.e_op_code_INC_DAT:
+			case OpCode.e_op_code_DEC_DAT:
+			case OpCode.e_op_code_NOT_DAT: {
+				Long v = known.get(written);
+				if (v != null)
+					v = i.op == OpCode.e_op_code_INC_DAT ? v + 1 : i.op == OpCode.e_op_code_DEC_DAT ? v - 1 : ~v;
+				known.put(written, v);
+				break;
+			}
+			case OpCode.e_op_code_ADD_DAT:
+			case OpCode.e_op_code_SUB_DAT:
+			case OpCode.e_op_code_MUL_DAT:
+			case OpCode.e_op_code_DIV_DAT:
+			case OpCode.e_op_code_MOD_DAT:
+			case OpCode.e_op_code_AND_DAT:
+			case OpCode.e_op_code_BOR_DAT:
+			case OpCode.e_op_code_XOR_DAT:
+			case OpCode.e_op_code_SHL_DAT:
+			case OpCode.e_op_code_SHR_DAT: {
+				Long a = known.get(written);
+				Long b = known.get(i.getInt(5));
+				Long result = a != null && b != null ? fold(i.op, a, b) : null;
+				if (result != null) {
+					replace(k, setVal(written, result));
+					changed = true;
+				} else if (b != null) {
+					byte[] simpler = simplify(i.op, written, b);
+					if (simpler != null) {
+						if (simpler.length == 0)
+							remove(k--);
+						else
+							replace(k, simpler);
+						changed = true;
+						if (simpler.length == 0)
+							result = a;
+						else if (simpler[0] == OpCode.e_op_code_CLR_DAT)
+							result = 0L;
+						else if (a != null)
+							result = simpler[0] == OpCode.e_op_code_INC_DAT ? a + 1
+									: simpler[0] == OpCode.e_op_code_DEC_DAT ? a - 1 : ~a;
+					}
+				}
+				known.put(written, result);
+				break;
+			}
+			default:
+				if (written >= 0)
+					known.remove(written);
+			}
+			if (!tmpVars.contains(written))
+				known.remove(written);
+			if (isBlockEnd(i.op))
+				known.clear();
+		}
+		return changed;
+	}
+
+	/**
+	 * @return true if the value of the given slot after the instruction at the
+	 *         given index can be read, following all branches of the method
+	 *         (slots are always written before read by a method, so their values
+	 *         are not used by the caller)
+	 */
+	private boolean isLiveAfter(int index, int address) {
+		IdentityHashMap<Instruction, Integer> indexes = indexes();
+		boolean[] visited = new boolean[code.size()];
+		ArrayList<Integer> pending = new ArrayList<>();
+		pending.add(index + 1);
+		int[] reads = new int[3];
+		while (!pending.isEmpty()) {
+			int k = pending.remove(pending.size() - 1);
+			if (k >= code.size() || visited[k])
+				continue;
+			visited[k] = true;
+			Instruction i = code.get(k);
+			int nreads = read(i, reads);
+			for (int r = 0; r < nreads; r++)
+				if (reads[r] == address)
+					return true;
+			if (written(i) == address && isPureStore(i.op))
+				continue;
+			if (!addSuccessors(k, indexes, pending))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the given temporary variable is overwritten after the
+	 *         instruction at the given index before being read, on the same block
+	 */
+	private boolean isDeadAfter(int index, int address) {
+		int[] reads = new int[3];
+		for (int k = index + 1; k < code.size(); k++) {
+			Instruction i = code.get(k);
+			if (i.isTarget())
+				return false;
+			int nreads = read(i, reads);
+			for (int r = 0; r < nreads; r++)
+				if (reads[r] == address)
+					return false;
+			if (written(i) == address && isPureStore(i.op))
+				return true;
+			if (isBlockEnd(i.op))
+				return false;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the result of the given operation on constants, as the machine
+	 *         would calculate it, or null if it should be left for runtime
+	 */
+	private static Long fold(byte op, long a, long b) {
+		switch (op) {
+		case OpCode.e_op_code_ADD_DAT:
+			return a + b;
+		case OpCode.e_op_code_SUB_DAT:
+			return a - b;
+		case OpCode.e_op_code_MUL_DAT:
+			return a * b;
+		case OpCode.e_op_code_DIV_DAT:
+			// division by zero is an error, overflow depends on the platform
+			return b == 0 || (a == Long.MIN_VALUE && b == -1) ? null : a / b;
+		case OpCode.e_op_code_MOD_DAT:
+			return b == 0 || (a == Long.MIN_VALUE && b == -1) ? null : a % b;
+		case OpCode.e_op_code_AND_DAT:
+			return a & b;
+		case OpCode.e_op_code_BOR_DAT:
+			return a | b;
+		case OpCode.e_op_code_XOR_DAT:
+			return a ^ b;
+		case OpCode.e_op_code_SHL_DAT:
+			return b < 0 || b > 63 ? 0L : a << b;
+		case OpCode.e_op_code_SHR_DAT:
+			return b < 0 || b > 63 ? 0L : a >>> b;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return a cheaper replacement for the given operation with the constant
+	 *         operand, empty for no operation at all, null if none
+	 */
+	private static byte[] simplify(byte op, int dest, long b) {
+		switch (op) {
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+			if (b == 0)
+				return new byte[0];
+			if (b == 1 || b == -1)
+				return unary((b == 1) == (op == OpCode.e_op_code_ADD_DAT) ? OpCode.e_op_code_INC_DAT
+						: OpCode.e_op_code_DEC_DAT, dest);
+			return null;
+		case OpCode.e_op_code_MUL_DAT:
+			if (b == 1)
+				return new byte[0];
+			if (b == 0)
+				return unary(OpCode.e_op_code_CLR_DAT, dest);
+			return null;
+		case OpCode.e_op_code_DIV_DAT:
+			return b == 1 ? new byte[0] : null;
+		case OpCode.e_op_code_MOD_DAT:
+			return b == 1 || b == -1 ? unary(OpCode.e_op_code_CLR_DAT, dest) : null;
+		case OpCode.e_op_code_AND_DAT:
+			if (b == -1)
+				return new byte[0];
+			if (b == 0)
+				return unary(OpCode.e_op_code_CLR_DAT, dest);
+			return null;
+		case OpCode.e_op_code_XOR_DAT:
+			if (b == -1)
+				return unary(OpCode.e_op_code_NOT_DAT, dest);
+			return b == 0 ? new byte[0] : null;
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+			return b == 0 ? new byte[0] : null;
+		default:
+			return null;
+		}
+	}
+
+	private static boolean isPureStore(byte op) {
+		return op == OpCode.e_op_code_SET_VAL || op == OpCode.e_op_code_SET_DAT || op == OpCode.e_op_code_CLR_DAT
+				|| op == OpCode.e_op_code_SET_IND || op == OpCode.e_op_code_SET_IDX;
+	}
+
+	private static boolean isBlockEnd(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_JMP_SUB:
+		case OpCode.e_op_code_RET_SUB:
+		case OpCode.e_op_code_JMP_ADR:
+		case OpCode.e_op_code_BZR_DAT:
+		case OpCode.e_op_code_BNZ_DAT:
+		case OpCode.e_op_code_BGT_DAT:
+		case OpCode.e_op_code_BLT_DAT:
+		case OpCode.e_op_code_BGE_DAT:
+		case OpCode.e_op_code_BLE_DAT:
+		case OpCode.e_op_code_BEQ_DAT:
+		case OpCode.e_op_code_BNE_DAT:
+		case OpCode.e_op_code_SLP_DAT:
+		case OpCode.e_op_code_FIZ_DAT:
+		case OpCode.e_op_code_STZ_DAT:
+		case OpCode.e_op_code_FIN_IMD:
+		case OpCode.e_op_code_STP_IMD:
+		case OpCode.e_op_code_SLP_IMD:
+		case OpCode.e_op_code_ERR_ADR:
+		case OpCode.e_op_code_SET_PCS:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return the address directly written by the given instruction or -1
+	 */
+	static int written(Instruction i) {
+		switch (i.op) {
+		case OpCode.e_op_code_SET_VAL:
+		case OpCode.e_op_code_SET_DAT:
+		case OpCode.e_op_code_CLR_DAT:
+		case OpCode.e_op_code_INC_DAT:
+		case OpCode.e_op_code_DEC_DAT:
+		case OpCode.e_op_code_NOT_DAT:
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_DIV_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_MOD_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+		case OpCode.e_op_code_SET_IND:
+		case OpCode.e_op_code_SET_IDX:
+		case OpCode.e_op_code_POP_DAT:
+			return i.getInt(1);
+		case OpCode.e_op_code_EXT_FUN_RET:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+			return i.getInt(3);
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Puts the addresses directly read by the given instruction on the given array.
+	 *
+	 * @return the number of addresses read
+	 */
+	static int read(Instruction i, int[] reads) {
+		switch (i.op) {
+		case OpCode.e_op_code_SET_DAT:
+		case OpCode.e_op_code_SET_IND:
+			reads[0] = i.getInt(5);
+			return 1;
+		case OpCode.e_op_code_INC_DAT:
+		case OpCode.e_op_code_DEC_DAT:
+		case OpCode.e_op_code_NOT_DAT:
+		case OpCode.e_op_code_PSH_DAT:
+		case OpCode.e_op_code_BZR_DAT:
+		case OpCode.e_op_code_BNZ_DAT:
+		case OpCode.e_op_code_SLP_DAT:
+		case OpCode.e_op_code_FIZ_DAT:
+		case OpCode.e_op_code_STZ_DAT:
+			reads[0] = i.getInt(1);
+			return 1;
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_DIV_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_MOD_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+		case OpCode.e_op_code_IND_DAT:
+		case OpCode.e_op_code_BGT_DAT:
+		case OpCode.e_op_code_BLT_DAT:
+		case OpCode.e_op_code_BGE_DAT:
+		case OpCode.e_op_code_BLE_DAT:
+		case OpCode.e_op_code_BEQ_DAT:
+		case OpCode.e_op_code_BNE_DAT:
+			reads[0] = i.getInt(1);
+			reads[1] = i.getInt(5);
+			return 2;
+		case OpCode.e_op_code_SET_IDX:
+			reads[0] = i.getInt(5);
+			reads[1] = i.getInt(9);
+			return 2;
+		case OpCode.e_op_code_IDX_DAT:
+			reads[0] = i.getInt(1);
+			reads[1] = i.getInt(5);
+			reads[2] = i.getInt(9);
+			return 3;
+		case OpCode.e_op_code_EXT_FUN_DAT:
+			reads[0] = i.getInt(3);
+			return 1;
+		case OpCode.e_op_code_EXT_FUN_DAT_2:
+			reads[0] = i.getInt(3);
+			reads[1] = i.getInt(7);
+			return 2;
+		case OpCode.e_op_code_EXT_FUN_RET_DAT:
+			reads[0] = i.getInt(7);
+			return 1;
+		case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+			reads[0] = i.getInt(7);
+			reads[1] = i.getInt(11);
+			return 2;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the position of the address operands of the given operation
+	 */
+	private static int[] addressPositions(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_SET_VAL:
+		case OpCode.e_op_code_CLR_DAT:
+		case OpCode.e_op_code_INC_DAT:
+		case OpCode.e_op_code_DEC_DAT:
+		case OpCode.e_op_code_NOT_DAT:
+		case OpCode.e_op_code_PSH_DAT:
+		case OpCode.e_op_code_POP_DAT:
+		case OpCode.e_op_code_BZR_DAT:
+		case OpCode.e_op_code_BNZ_DAT:
+		case OpCode.e_op_code_SLP_DAT:
+		case OpCode.e_op_code_FIZ_DAT:
+		case OpCode.e_op_code_STZ_DAT:
+			return new int[] { 1 };
+		case OpCode.e_op_code_SET_DAT:
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_DIV_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_MOD_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+		case OpCode.e_op_code_SET_IND:
+		case OpCode.e_op_code_IND_DAT:
+		case OpCode.e_op_code_BGT_DAT:
+		case OpCode.e_op_code_BLT_DAT:
+		case OpCode.e_op_code_BGE_DAT:
+		case OpCode.e_op_code_BLE_DAT:
+		case OpCode.e_op_code_BEQ_DAT:
+		case OpCode.e_op_code_BNE_DAT:
+			return new int[] { 1, 5 };
+		case OpCode.e_op_code_SET_IDX:
+		case OpCode.e_op_code_IDX_DAT:
+			return new int[] { 1, 5, 9 };
+		case OpCode.e_op_code_EXT_FUN_DAT:
+		case OpCode.e_op_code_EXT_FUN_RET:
+			return new int[] { 3 };
+		case OpCode.e_op_code_EXT_FUN_DAT_2:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT:
+			return new int[] { 3, 7 };
+		case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+			return new int[] { 3, 7, 11 };
+		default:
+			return new int[0];
+		}
+	}
+
+	/**
+	 * @return the position of the address written by an operation that does not
+	 *         read it before, -1 if not such an operation
+	 */
+	private static int resultPosition(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_SET_VAL:
+		case OpCode.e_op_code_SET_DAT:
+		case OpCode.e_op_code_CLR_DAT:
+		case OpCode.e_op_code_SET_IND:
+		case OpCode.e_op_code_SET_IDX:
+		case OpCode.e_op_code_POP_DAT:
+			return 1;
+		case OpCode.e_op_code_EXT_FUN_RET:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >> 8);
+		bytes[offset + 2] = (byte) (value >> 16);
+		bytes[offset + 3] = (byte) (value >> 24);
+	}
+
+	private static byte[] setDat(int dest, int src) {
+		ByteBuffer b = ByteBuffer.allocate(9);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		b.put(OpCode.e_op_code_SET_DAT);
+		b.putInt(dest);
+		b.putInt(src);
+		return b.array();
+	}
+
+	private static byte[] setVal(int dest, long value) {
+		ByteBuffer b = ByteBuffer.allocate(13);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		b.put(OpCode.e_op_code_SET_VAL);
+		b.putInt(dest);
+		b.putLong(value);
+		return b.array();
+	}
+
+	private static byte[] unary(byte op, int dest) {
+		ByteBuffer b = ByteBuffer.allocate(5);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		b.put(op);
+		b.putInt(dest);
+		return b.array();
+	}
+
+	private static int branchOffsetPosition(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_BZR_DAT:
+		case OpCode.e_op_code_BNZ_DAT:
+			return 5;
+		case OpCode.e_op_code_BGT_DAT:
+		case OpCode.e_op_code_BLT_DAT:
+		case OpCode.e_op_code_BGE_DAT:
+		case OpCode.e_op_code_BLE_DAT:
+		case OpCode.e_op_code_BEQ_DAT:
+		case OpCode.e_op_code_BNE_DAT:
+			return 9;
+		default:
+			return -1;
+		}
+	}
+}
@@ -26,6 +26,7 @@ import javax.swing.border.TitledBorder;
 import bt.BT;
 import bt.Contract;
 import bt.compiler.Compiler;
+import bt.compiler.CompilerCache;
 import bt.compiler.Method;
 import bt.compiler.Printer;
 import signumj.entity.SignumAddress;
@@ -144,12 +145,7 @@ class CompileDialog extends JDialog implements ActionListener {
 
     public void execute() {
         try {
-            comp = new Compiler(atClass);
-
-            comp.compile();
-            if (comp.getErrors().size() == 0) {
-                comp.link();
-            }
+            comp = CompilerCache.getInstance().compile(atClass);
 
             if (comp.getErrors().size() > 0) {
                 JOptionPane.showMessageDialog(getParent(),
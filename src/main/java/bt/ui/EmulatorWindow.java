@@ -7,6 +7,7 @@ import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 import javax.swing.JButton;
@@ -19,17 +20,20 @@ import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.JTextField;
 import javax.swing.LookAndFeel;
+import javax.swing.SwingUtilities;
 import javax.swing.ToolTipManager;
 import javax.swing.UIManager;
 import javax.swing.border.TitledBorder;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableCellRenderer;
 
+import bt.ActivationCost;
 import bt.Address;
 import bt.Contract;
 import bt.Emulator;
 import bt.Register;
 import bt.Transaction;
+import io.reactivex.schedulers.Schedulers;
 import jiconfont.icons.font_awesome.FontAwesome;
 import jiconfont.swing.IconFontSwing;
 
@@ -103,6 +107,9 @@ public class EmulatorWindow extends JFrame implements ActionListener {
 		cmdPanel.add(forgeButton = new JButton("Forge block"));
 		forgeButton.addActionListener(this);
 		cmdPanel.add(blockLabel = new JLabel());
+		// follow blocks forged anywhere, not only by the button
+		Emulator.getInstance().blockForged().observeOn(Schedulers.from(SwingUtilities::invokeLater))
+				.subscribe(b -> blockLabel.setText("Block height=" + b.getHeight()));
 		cmdPanel.add(new JLabel());
 		cmdPanel.add(new JLabel());
 		cmdPanel.add(new JLabel());
@@ -172,6 +179,8 @@ public class EmulatorWindow extends JFrame implements ActionListener {
 					Address add = (Address) value;
 					if (add.getContract() != null)
 						c.setToolTipText(add.getContract().getFieldValues());
+					else if (add.getBytecode() != null)
+						c.setToolTipText(add.getBytecode().getFieldValues() + getCosts(add));
 				}
 				return c;
 			}
@@ -247,7 +256,7 @@ public class EmulatorWindow extends JFrame implements ActionListener {
 
 			@Override
 			public Object getValueAt(int r, int c) {
-				ArrayList<Transaction> txs = Emulator.getInstance().getTxs();
+				List<Transaction> txs = Emulator.getInstance().getTxs();
 				Transaction tx = txs.get(txs.size() - r - 1);
 				switch (c) {
 				case CONF_COL:
@@ -311,7 +320,6 @@ public class EmulatorWindow extends JFrame implements ActionListener {
 		if (e.getSource() == forgeButton) {
 			try {
 				Emulator.getInstance().forgeBlock();
-				blockLabel.setText("Block height=" + (Emulator.getInstance().getCurrentBlock().getHeight() - 1));
 			} catch (Exception ex) {
 				ex.printStackTrace();
 				JOptionPane.showMessageDialog(EmulatorWindow.this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
@@ -456,6 +464,19 @@ public class EmulatorWindow extends JFrame implements ActionListener {
 		}
 	}
 
+	/**
+	 * @return the cost of the last run and the total fees paid by a compiled
+	 *         contract, to be appended to its tooltip
+	 */
+	private static String getCosts(Address contract) {
+		ArrayList<ActivationCost> costs = Emulator.getInstance().getActivationCosts(contract);
+		if (costs.isEmpty())
+			return "";
+		ActivationCost last = costs.get(costs.size() - 1);
+		return "<hr><b>last run</b> = " + last + "<br><b>runs</b> = " + costs.size() + "<br><b>fees paid</b> = "
+				+ ((double) Emulator.getInstance().getFeesPaid(contract)) / Contract.ONE_BURST + "<br>";
+	}
+
 	private void rebuildComboboxes() {
 		// rebuild the from and to combo boxes
 		sendFrom.removeAllItems();
@@ -0,0 +1,839 @@
+package bt.vm;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import bt.compiler.OpCode;
+
+/**
+ * Interpreter for CIYAM AT bytecode.
+ *
+ * Runs the code produced by {@link bt.compiler.Compiler#getCode()} over a long
+ * data segment with the A and B registers, user and call stacks, just like an
+ * AT on-chain. Everything depending on the blockchain is delegated to a
+ * {@link MachineApi}.
+ *
+ * The machine state survives between runs, so a contract can sleep, finish or
+ * run out of steps and be resumed later. The decode loop never allocates.
+ *
+ * @author jjos
+ */
+public class Machine {
+
+	/** Number of longs in a data or stack page */
+	public static final int PAGE_LONGS = 32;
+	/** Steps charged for every API (EXT_FUN) call */
+	public static final int API_STEP_MULTIPLIER = 10;
+
+	/** Finished (FIN_IMD), next activation starts from the SET_PCS position */
+	public static final int STATUS_FINISHED = 0;
+	/** Stopped (STP_IMD), next activation continues from the current position */
+	public static final int STATUS_STOPPED = 1;
+	/** Sleeping for {@link #getSleepBlocks()} blocks */
+	public static final int STATUS_SLEEPING = 2;
+	/** Ran out of steps for this run, should continue on the next block */
+	public static final int STATUS_STEP_LIMIT = 3;
+	/** An error happened and there is no error handler set, the machine is dead */
+	public static final int STATUS_ERROR = 4;
+	/** The balance cannot pay the next step, continues when activated again */
+	public static final int STATUS_OUT_OF_BALANCE = 5;
+
+	public static final int ERROR_NONE = 0;
+	public static final int ERROR_INVALID_CODE = 1;
+	public static final int ERROR_INVALID_OPCODE = 2;
+	public static final int ERROR_INVALID_FUNCTION = 3;
+	public static final int ERROR_INVALID_ADDRESS = 4;
+	public static final int ERROR_STACK_OVERFLOW = 5;
+	public static final int ERROR_STACK_UNDERFLOW = 6;
+	public static final int ERROR_DIVISION_BY_ZERO = 7;
+
+	final byte[] code;
+	final long[] data;
+	final long[] userStack;
+	final long[] callStack;
+	final long[] a = new long[4];
+	final long[] b = new long[4];
+
+	int pc;
+	int pcs;
+	int err = -1;
+	int usp;
+	int csp;
+
+	boolean finished;
+	boolean stopped;
+	boolean dead;
+	long sleepBlocks;
+	long steps;
+	long apiCalls;
+	/** Fee charged for every step, zero for no fees */
+	long stepFee;
+	long fees;
+	int error;
+	int errorPc;
+
+	private final MessageDigest sha256;
+	private final MessageDigest md5;
+	private final Ripemd160 ripemd160 = new Ripemd160();
+	private final byte[] hashIn = new byte[32];
+	private final byte[] hashOut = new byte[32];
+
+	/**
+	 * Creates a machine with one page for each stack, as registered by
+	 * {@link bt.BT#registerContract(String, byte[], int, String, String, long[], signumj.entity.SignumValue, signumj.entity.SignumValue, int)}.
+	 *
+	 * @param code      the machine code
+	 * @param dataPages the number of data pages
+	 */
+	public Machine(byte[] code, int dataPages) {
+		this(code, dataPages, 1, 1);
+	}
+
+	public Machine(byte[] code, int dataPages, int callStackPages, int userStackPages) {
+		this.code = code;
+		this.data = new long[dataPages * PAGE_LONGS];
+		this.callStack = new long[callStackPages * PAGE_LONGS];
+		this.userStack = new long[userStackPages * PAGE_LONGS];
+
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// not expected to reach that point
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Creates a copy of the given machine, with the same code and an independent
+	 * copy of its state.
+	 */
+	public Machine(Machine other) {
+		this(other.code, other.data.length / PAGE_LONGS, other.callStack.length / PAGE_LONGS,
+				other.userStack.length / PAGE_LONGS);
+		System.arraycopy(other.data, 0, data, 0, data.length);
+		System.arraycopy(other.callStack, 0, callStack, 0, callStack.length);
+		System.arraycopy(other.userStack, 0, userStack, 0, userStack.length);
+		System.arraycopy(other.a, 0, a, 0, a.length);
+		System.arraycopy(other.b, 0, b, 0, b.length);
+		pc = other.pc;
+		pcs = other.pcs;
+		err = other.err;
+		usp = other.usp;
+		csp = other.csp;
+		finished = other.finished;
+		stopped = other.stopped;
+		dead = other.dead;
+		sleepBlocks = other.sleepBlocks;
+		steps = other.steps;
+		apiCalls = other.apiCalls;
+		stepFee = other.stepFee;
+		fees = other.fees;
+		error = other.error;
+		errorPc = other.errorPc;
+	}
+
+	/**
+	 * Prepares the machine for a new activation.
+	 *
+	 * A finished machine restarts from the SET_PCS position, a stopped or sleeping
+	 * one continues from where it was.
+	 */
+	public void activate() {
+		if (finished)
+			pc = pcs;
+		finished = false;
+		stopped = false;
+		sleepBlocks = 0;
+		steps = 0;
+		apiCalls = 0;
+		fees = 0;
+	}
+
+	/**
+	 * Runs until the machine finishes, stops, sleeps, fails or the given number of
+	 * steps is exhausted.
+	 *
+	 * With a step fee set, every step is paid from
+	 * {@link MachineApi#getCurrentBalance()} before executing it, so the API
+	 * should discount the fees charged on the current run (see
+	 * {@link #getFees()}).
+	 *
+	 * @param maxSteps the maximum number of steps for this run
+	 * @param api      the blockchain functions
+	 * @return one of the STATUS constants
+	 */
+	public int run(long maxSteps, MachineApi api) {
+		if (dead)
+			return STATUS_ERROR;
+
+		final byte[] code = this.code;
+		final long[] data = this.data;
+		final long stepLimit = steps + maxSteps;
+
+		while (true) {
+			if (pc < 0 || pc >= code.length) {
+				if (fault(ERROR_INVALID_CODE))
+					continue;
+				return STATUS_ERROR;
+			}
+
+			byte op = code[pc];
+			int cost = op >= OpCode.e_op_code_EXT_FUN && op <= OpCode.e_op_code_EXT_FUN_RET_DAT_2 ? API_STEP_MULTIPLIER
+					: 1;
+			if (steps + cost > stepLimit)
+				return STATUS_STEP_LIMIT;
+			if (stepFee > 0 && cost * stepFee > api.getCurrentBalance())
+				return STATUS_OUT_OF_BALANCE;
+			steps += cost;
+			fees += cost * stepFee;
+			if (cost > 1)
+				apiCalls++;
+
+			int size = OpCode.getSize(op);
+			if (size == 0) {
+				if (fault(ERROR_INVALID_OPCODE))
+					continue;
+				return STATUS_ERROR;
+			}
+			if (pc + size > code.length) {
+				if (fault(ERROR_INVALID_CODE))
+					continue;
+				return STATUS_ERROR;
+			}
+
+			int nextPc = pc + size;
+			int error = ERROR_NONE;
+			try {
+				switch (op) {
+				case OpCode.e_op_code_NOP:
+					break;
+				case OpCode.e_op_code_SET_VAL:
+					data[getInt(pc + 1)] = getLong(pc + 5);
+					break;
+				case OpCode.e_op_code_SET_DAT:
+					data[getInt(pc + 1)] = data[getInt(pc + 5)];
+					break;
+				case OpCode.e_op_code_CLR_DAT:
+					data[getInt(pc + 1)] = 0;
+					break;
+				case OpCode.e_op_code_INC_DAT:
+					data[getInt(pc + 1)]++;
+					break;
+				case OpCode.e_op_code_DEC_DAT:
+					data[getInt(pc + 1)]--;
+					break;
+				case OpCode.e_op_code_NOT_DAT: {
+					int addr = getInt(pc + 1);
+					data[addr] = ~data[addr];
+					break;
+				}
+				case OpCode.e_op_code_ADD_DAT:
+					data[getInt(pc + 1)] += data[getInt(pc + 5)];
+					break;
+				case OpCode.e_op_code_SUB_DAT:
+					data[getInt(pc + 1)] -= data[getInt(pc + 5)];
+					break;
+				case OpCode.e_op_code_MUL_DAT:
+					data[getInt(pc + 1)] *= data[getInt(pc + 5)];
+					break;
+				case OpCode.e_op_code_DIV_DAT:
+				case OpCode.e_op_code_MOD_DAT: {
+					int addr = getInt(pc + 1);
+					long v = data[getInt(pc + 5)];
+					if (v == 0) {
+						error = ERROR_DIVISION_BY_ZERO;
+						break;
+					}
+					if (op == OpCode.e_op_code_DIV_DAT)
+						data[addr] /= v;
+					else
+						data[addr] %= v;
+					break;
+				}
+				case OpCode.e_op_code_BOR_DAT:
+					data[getInt(pc + 1)] |= data[getInt(pc + 5)];
+					break;
+				case OpCode.e_op_code_AND_DAT:
+					data[getInt(pc + 1)] &= data[getInt(pc + 5)];
+					break;
+				case OpCode.e_op_code_XOR_DAT:
+					data[getInt(pc + 1)] ^= data[getInt(pc + 5)];
+					break;
+				case OpCode.e_op_code_SHL_DAT:
+				case OpCode.e_op_code_SHR_DAT: {
+					int addr = getInt(pc + 1);
+					long shift = data[getInt(pc + 5)];
+					if (shift < 0 || shift > 63)
+						data[addr] = 0;
+					else if (op == OpCode.e_op_code_SHL_DAT)
+						data[addr] <<= shift;
+					else
+						data[addr] >>>= shift;
+					break;
+				}
+				case OpCode.e_op_code_SET_IND:
+					data[getInt(pc + 1)] = data[(int) data[getInt(pc + 5)]];
+					break;
+				case OpCode.e_op_code_SET_IDX:
+					data[getInt(pc + 1)] = data[(int) (data[getInt(pc + 5)] + data[getInt(pc + 9)])];
+					break;
+				case OpCode.e_op_code_IND_DAT:
+					data[(int) data[getInt(pc + 1)]] = data[getInt(pc + 5)];
+					break;
+				case OpCode.e_op_code_IDX_DAT:
+					data[(int) (data[getInt(pc + 1)] + data[getInt(pc + 5)])] = data[getInt(pc + 9)];
+					break;
+				case OpCode.e_op_code_PSH_DAT:
+					if (usp >= userStack.length) {
+						error = ERROR_STACK_OVERFLOW;
+						break;
+					}
+					userStack[usp++] = data[getInt(pc + 1)];
+					break;
+				case OpCode.e_op_code_POP_DAT:
+					if (usp == 0) {
+						error = ERROR_STACK_UNDERFLOW;
+						break;
+					}
+					data[getInt(pc + 1)] = userStack[--usp];
+					break;
+				case OpCode.e_op_code_JMP_SUB:
+					if (csp >= callStack.length) {
+						error = ERROR_STACK_OVERFLOW;
+						break;
+					}
+					callStack[csp++] = nextPc;
+					nextPc = getInt(pc + 1);
+					break;
+				case OpCode.e_op_code_RET_SUB:
+					if (csp == 0) {
+						error = ERROR_STACK_UNDERFLOW;
+						break;
+					}
+					nextPc = (int) callStack[--csp];
+					break;
+				case OpCode.e_op_code_JMP_ADR:
+					nextPc = getInt(pc + 1);
+					break;
+				case OpCode.e_op_code_BZR_DAT:
+					if (data[getInt(pc + 1)] == 0)
+						nextPc = pc + code[pc + 5];
+					break;
+				case OpCode.e_op_code_BNZ_DAT:
+					if (data[getInt(pc + 1)] != 0)
+						nextPc = pc + code[pc + 5];
+					break;
+				case OpCode.e_op_code_BGT_DAT:
+					if (data[getInt(pc + 1)] > data[getInt(pc + 5)])
+						nextPc = pc + code[pc + 9];
+					break;
+				case OpCode.e_op_code_BLT_DAT:
+					if (data[getInt(pc + 1)] < data[getInt(pc + 5)])
+						nextPc = pc + code[pc + 9];
+					break;
+				case OpCode.e_op_code_BGE_DAT:
+					if (data[getInt(pc + 1)] >= data[getInt(pc + 5)])
+						nextPc = pc + code[pc + 9];
+					break;
+				case OpCode.e_op_code_BLE_DAT:
+					if (data[getInt(pc + 1)] <= data[getInt(pc + 5)])
+						nextPc = pc + code[pc + 9];
+					break;
+				case OpCode.e_op_code_BEQ_DAT:
+					if (data[getInt(pc + 1)] == data[getInt(pc + 5)])
+						nextPc = pc + code[pc + 9];
+					break;
+				case OpCode.e_op_code_BNE_DAT:
+					if (data[getInt(pc + 1)] != data[getInt(pc + 5)])
+						nextPc = pc + code[pc + 9];
+					break;
+				case OpCode.e_op_code_SLP_DAT:
+					pc = nextPc;
+					sleepBlocks = Math.max(1L, data[getInt(nextPc - 4)]);
+					stopped = true;
+					return STATUS_SLEEPING;
+				case OpCode.e_op_code_SLP_IMD:
+					pc = nextPc;
+					sleepBlocks = 1;
+					stopped = true;
+					return STATUS_SLEEPING;
+				case OpCode.e_op_code_FIZ_DAT:
+					if (data[getInt(pc + 1)] == 0) {
+						pc = pcs;
+						finished = true;
+						return STATUS_FINISHED;
+					}
+					break;
+				case OpCode.e_op_code_STZ_DAT:
+					if (data[getInt(pc + 1)] == 0) {
+						pc = nextPc;
+						stopped = true;
+						return STATUS_STOPPED;
+					}
+					break;
+				case OpCode.e_op_code_FIN_IMD:
+					pc = pcs;
+					finished = true;
+					return STATUS_FINISHED;
+				case OpCode.e_op_code_STP_IMD:
+					pc = nextPc;
+					stopped = true;
+					return STATUS_STOPPED;
+				case OpCode.e_op_code_ERR_ADR:
+					err = getInt(pc + 1);
+					break;
+				case OpCode.e_op_code_SET_PCS:
+					pcs = nextPc;
+					break;
+				case OpCode.e_op_code_EXT_FUN:
+					error = extFun(getShort(pc + 1), api);
+					break;
+				case OpCode.e_op_code_EXT_FUN_DAT:
+					error = extFunDat(getShort(pc + 1), data[getInt(pc + 3)], api);
+					break;
+				case OpCode.e_op_code_EXT_FUN_DAT_2:
+					error = extFunDat2(getShort(pc + 1), data[getInt(pc + 3)], data[getInt(pc + 7)]);
+					break;
+				case OpCode.e_op_code_EXT_FUN_RET: {
+					int addr = getInt(pc + 3);
+					// check the address before calling, the function could have side effects
+					long v = data[addr];
+					error = extFunRet(getShort(pc + 1), api);
+					if (error == ERROR_NONE)
+						data[addr] = funRet;
+					else
+						data[addr] = v;
+					break;
+				}
+				case OpCode.e_op_code_EXT_FUN_RET_DAT_2: {
+					int addr = getInt(pc + 3);
+					long v = data[addr];
+					error = extFunRetDat2(getShort(pc + 1), data[getInt(pc + 7)], data[getInt(pc + 11)]);
+					if (error == ERROR_NONE)
+						data[addr] = funRet;
+					else
+						data[addr] = v;
+					break;
+				}
+				default:
+					// EXT_FUN_RET_DAT has no functions defined
+					error = ERROR_INVALID_FUNCTION;
+					break;
+				}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				error = ERROR_INVALID_ADDRESS;
+			}
+
+			if (error != ERROR_NONE) {
+				if (fault(error))
+					continue;
+				return STATUS_ERROR;
+			}
+			pc = nextPc;
+		}
+	}
+
+	/** Value returned by the last EXT_FUN_RET function */
+	private long funRet;
+
+	private int extFun(short fun, MachineApi api) {
+		switch (fun) {
+		case OpCode.Clear_A:
+			clear(a);
+			break;
+		case OpCode.Clear_B:
+			clear(b);
+			break;
+		case OpCode.Clear_A_And_B:
+			clear(a);
+			clear(b);
+			break;
+		case OpCode.Copy_A_From_B:
+			System.arraycopy(b, 0, a, 0, 4);
+			break;
+		case OpCode.Copy_B_From_A:
+			System.arraycopy(a, 0, b, 0, 4);
+			break;
+		case OpCode.Swap_A_and_B:
+			for (int i = 0; i < 4; i++) {
+				long v = a[i];
+				a[i] = b[i];
+				b[i] = v;
+			}
+			break;
+		case OpCode.OR_A_with_B:
+			for (int i = 0; i < 4; i++)
+				a[i] |= b[i];
+			break;
+		case OpCode.OR_B_with_A:
+			for (int i = 0; i < 4; i++)
+				b[i] |= a[i];
+			break;
+		case OpCode.AND_A_with_B:
+			for (int i = 0; i < 4; i++)
+				a[i] &= b[i];
+			break;
+		case OpCode.AND_B_with_A:
+			for (int i = 0; i < 4; i++)
+				b[i] &= a[i];
+			break;
+		case OpCode.XOR_A_with_B:
+			for (int i = 0; i < 4; i++)
+				a[i] ^= b[i];
+			break;
+		case OpCode.XOR_B_with_A:
+			for (int i = 0; i < 4; i++)
+				b[i] ^= a[i];
+			break;
+		case OpCode.MD5_A_To_B:
+			md5AToB();
+			clear(b);
+			getLongs(hashOut, b, 2);
+			break;
+		case OpCode.HASH160_A_To_B:
+			hash160AToB();
+			clear(b);
+			getLongs(hashOut, b, 3);
+			break;
+		case OpCode.SHA256_A_To_B:
+			sha256AToB();
+			getLongs(hashOut, b, 4);
+			break;
+		case OpCode.Put_Last_Block_Hash_In_A:
+			api.getLastBlockHash(a);
+			break;
+		case OpCode.Message_From_Tx_In_A_To_B:
+			api.getTxMessage(a[0], b);
+			break;
+		case OpCode.B_To_Address_Of_Tx_In_A:
+			clear(b);
+			b[0] = api.getTxSender(a[0]);
+			break;
+		case OpCode.B_To_Address_Of_Creator:
+			clear(b);
+			b[0] = api.getCreator();
+			break;
+		case OpCode.Send_All_To_Address_In_B:
+			api.sendAmount(api.getCurrentBalance(), b[0]);
+			break;
+		case OpCode.Send_Old_To_Address_In_B:
+			api.sendAmount(Math.min(api.getPreviousBalance(), api.getCurrentBalance()), b[0]);
+			break;
+		case OpCode.Send_A_To_Address_In_B:
+			api.sendMessage(a, b[0]);
+			break;
+		default:
+			return ERROR_INVALID_FUNCTION;
+		}
+		return ERROR_NONE;
+	}
+
+	private int extFunDat(short fun, long value, MachineApi api) {
+		switch (fun) {
+		case OpCode.Set_A1:
+		case OpCode.Set_A2:
+		case OpCode.Set_A3:
+		case OpCode.Set_A4:
+			a[fun - OpCode.Set_A1] = value;
+			break;
+		case OpCode.Set_B1:
+		case OpCode.Set_B2:
+		case OpCode.Set_B3:
+		case OpCode.Set_B4:
+			b[fun - OpCode.Set_B1] = value;
+			break;
+		case OpCode.A_To_Tx_After_Timestamp:
+			clear(a);
+			a[0] = api.getTxAfterTimestamp(value);
+			break;
+		case OpCode.Send_To_Address_In_B:
+			api.sendAmount(value, b[0]);
+			break;
+		default:
+			return ERROR_INVALID_FUNCTION;
+		}
+		return ERROR_NONE;
+	}
+
+	private int extFunDat2(short fun, long value1, long value2) {
+		switch (fun) {
+		case OpCode.Set_A1_A2:
+			a[0] = value1;
+			a[1] = value2;
+			break;
+		case OpCode.Set_A3_A4:
+			a[2] = value1;
+			a[3] = value2;
+			break;
+		case OpCode.Set_B1_B2:
+			b[0] = value1;
+			b[1] = value2;
+			break;
+		case OpCode.Set_B3_B4:
+			b[2] = value1;
+			b[3] = value2;
+			break;
+		default:
+			return ERROR_INVALID_FUNCTION;
+		}
+		return ERROR_NONE;
+	}
+
+	private int extFunRet(short fun, MachineApi api) {
+		switch (fun) {
+		case OpCode.Get_A1:
+		case OpCode.Get_A2:
+		case OpCode.Get_A3:
+		case OpCode.Get_A4:
+			funRet = a[fun - OpCode.Get_A1];
+			break;
+		case OpCode.Get_B1:
+		case OpCode.Get_B2:
+		case OpCode.Get_B3:
+		case OpCode.Get_B4:
+			funRet = b[fun - OpCode.Get_B1];
+			break;
+		case OpCode.Check_A_Is_Zero:
+			funRet = isZero(a) ? 1 : 0;
+			break;
+		case OpCode.Check_B_Is_Zero:
+			funRet = isZero(b) ? 1 : 0;
+			break;
+		case OpCode.Check_A_Equals_B:
+			funRet = a[0] == b[0] && a[1] == b[1] && a[2] == b[2] && a[3] == b[3] ? 1 : 0;
+			break;
+		case OpCode.Check_MD5_A_With_B:
+			md5AToB();
+			funRet = getLong(hashOut, 0) == b[0] && getLong(hashOut, 8) == b[1] ? 1 : 0;
+			break;
+		case OpCode.Check_HASH160_A_With_B:
+			hash160AToB();
+			funRet = getLong(hashOut, 0) == b[0] && getLong(hashOut, 8) == b[1] && getLong(hashOut, 16) == b[2] ? 1
+					: 0;
+			break;
+		case OpCode.Check_SHA256_A_With_B:
+			sha256AToB();
+			funRet = getLong(hashOut, 0) == b[0] && getLong(hashOut, 8) == b[1] && getLong(hashOut, 16) == b[2]
+					&& getLong(hashOut, 24) == b[3] ? 1 : 0;
+			break;
+		case OpCode.Get_Block_Timestamp:
+			funRet = api.getBlockTimestamp();
+			break;
+		case OpCode.Get_Creation_Timestamp:
+			funRet = api.getCreationTimestamp();
+			break;
+		case OpCode.Get_Last_Block_Timestamp:
+			funRet = api.getLastBlockTimestamp();
+			break;
+		case OpCode.Get_Type_For_Tx_In_A:
+			funRet = api.getTxType(a[0]);
+			break;
+		case OpCode.Get_Amount_For_Tx_In_A:
+			funRet = api.getTxAmount(a[0]);
+			break;
+		case OpCode.Get_Timestamp_For_Tx_In_A:
+			funRet = api.getTxTimestamp(a[0]);
+			break;
+		case OpCode.Get_Random_Id_For_Tx_In_A:
+			funRet = api.getTxRandomId(a[0]);
+			break;
+		case OpCode.Get_Current_Balance:
+			funRet = api.getCurrentBalance();
+			break;
+		case OpCode.Get_Previous_Balance:
+			funRet = api.getPreviousBalance();
+			break;
+		default:
+			return ERROR_INVALID_FUNCTION;
+		}
+		return ERROR_NONE;
+	}
+
+	private int extFunRetDat2(short fun, long value1, long value2) {
+		switch (fun) {
+		case OpCode.Add_Minutes_To_Timestamp:
+			funRet = value1 + ((value2 / 4) << 32);
+			break;
+		default:
+			return ERROR_INVALID_FUNCTION;
+		}
+		return ERROR_NONE;
+	}
+
+	/**
+	 * Handles an error, jumping to the error handler if available.
+	 *
+	 * A handler outside the code or failing on its first instruction would
+	 * fault again without running any step, so the machine dies instead.
+	 *
+	 * @return true if the execution should continue
+	 */
+	private boolean fault(int error) {
+		this.error = error;
+		this.errorPc = pc;
+		if (err >= 0 && err < code.length && pc != err) {
+			pc = err;
+			return true;
+		}
+		dead = true;
+		return false;
+	}
+
+	private void sha256AToB() {
+		putLongs(a, 4);
+		sha256.update(hashIn, 0, 32);
+		try {
+			sha256.digest(hashOut, 0, 32);
+		} catch (DigestException e) {
+			// not expected to reach that point
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void md5AToB() {
+		putLongs(a, 2);
+		md5.update(hashIn, 0, 16);
+		try {
+			md5.digest(hashOut, 0, 16);
+		} catch (DigestException e) {
+			// not expected to reach that point
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void hash160AToB() {
+		putLongs(a, 3);
+		for (int i = 20; i < hashOut.length; i++)
+			hashOut[i] = 0;
+		ripemd160.digest(hashIn, 24, hashOut);
+	}
+
+	private void putLongs(long[] reg, int n) {
+		for (int i = 0; i < n; i++) {
+			long v = reg[i];
+			for (int j = 0; j < 8; j++)
+				hashIn[i * 8 + j] = (byte) (v >>> (8 * j));
+		}
+	}
+
+	private static void getLongs(byte[] bytes, long[] reg, int n) {
+		for (int i = 0; i < n; i++)
+			reg[i] = getLong(bytes, i * 8);
+	}
+
+	private static long getLong(byte[] bytes, int pos) {
+		long v = 0;
+		for (int j = 7; j >= 0; j--)
+			v = (v << 8) | (bytes[pos + j] & 0xffL);
+		return v;
+	}
+
+	private static void clear(long[] reg) {
+		reg[0] = reg[1] = reg[2] = reg[3] = 0;
+	}
+
+	private static boolean isZero(long[] reg) {
+		return reg[0] == 0 && reg[1] == 0 && reg[2] == 0 && reg[3] == 0;
+	}
+
+	private int getInt(int pos) {
+		return (code[pos] & 0xff) | (code[pos + 1] & 0xff) << 8 | (code[pos + 2] & 0xff) << 16
+				| (code[pos + 3] & 0xff) << 24;
+	}
+
+	private short getShort(int pos) {
+		return (short) ((code[pos] & 0xff) | (code[pos + 1] & 0xff) << 8);
+	}
+
+	private long getLong(int pos) {
+		return (getInt(pos) & 0xffffffffL) | ((long) getInt(pos + 4)) << 32;
+	}
+
+	/**
+	 * @return the data segment
+	 */
+	public long[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return the value at the given data address
+	 */
+	public long getData(int address) {
+		return data[address];
+	}
+
+	/**
+	 * @return the current program counter
+	 */
+	public int getPc() {
+		return pc;
+	}
+
+	/**
+	 * @return the steps executed since the last activation
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return the API calls executed since the last activation
+	 */
+	public long getApiCalls() {
+		return apiCalls;
+	}
+
+	/**
+	 * @return the fees charged since the last activation
+	 */
+	public long getFees() {
+		return fees;
+	}
+
+	public long getStepFee() {
+		return stepFee;
+	}
+
+	/**
+	 * Sets the fee charged for every step, zero to run without fees.
+	 */
+	public void setStepFee(long stepFee) {
+		this.stepFee = stepFee;
+	}
+
+	/**
+	 * @return the number of blocks to sleep, after a {@link #STATUS_SLEEPING}
+	 */
+	public long getSleepBlocks() {
+		return sleepBlocks;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	public boolean isDead() {
+		return dead;
+	}
+
+	/**
+	 * @return the last error, one of the ERROR constants
+	 */
+	public int getError() {
+		return error;
+	}
+
+	/**
+	 * @return the program counter where the last error happened
+	 */
+	public int getErrorPc() {
+		return errorPc;
+	}
+}
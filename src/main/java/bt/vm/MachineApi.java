@@ -0,0 +1,99 @@
+package bt.vm;
+
+/**
+ * The blockchain functions available to a running {@link Machine}.
+ *
+ * Everything an AT can learn about the chain (blocks, transactions, balances)
+ * comes through this interface, so the same machine can run against the
+ * emulator or against recorded chain data.
+ *
+ * Transactions and addresses are identified by their signed long ids, as
+ * on-chain. Implementations should not allocate on these calls, since they are
+ * on the interpreter hot path.
+ *
+ * @author jjos
+ */
+public interface MachineApi {
+
+	/**
+	 * @return the timestamp of the block being processed
+	 */
+	long getBlockTimestamp();
+
+	/**
+	 * @return the timestamp of the block the AT was created
+	 */
+	long getCreationTimestamp();
+
+	/**
+	 * @return the timestamp of the previous block
+	 */
+	long getLastBlockTimestamp();
+
+	/**
+	 * Puts the hash of the previous block in the given 4 longs.
+	 */
+	void getLastBlockHash(long[] dest);
+
+	/**
+	 * @return the id of the first transaction received after the given timestamp,
+	 *         zero if there is no such transaction
+	 */
+	long getTxAfterTimestamp(long timestamp);
+
+	/**
+	 * @return the transaction type, 0 for payments and 1 for messages
+	 */
+	long getTxType(long txId);
+
+	/**
+	 * @return the transaction amount minus the activation fee
+	 */
+	long getTxAmount(long txId);
+
+	/**
+	 * @return the transaction timestamp
+	 */
+	long getTxTimestamp(long txId);
+
+	/**
+	 * @return a random id for the given transaction
+	 */
+	long getTxRandomId(long txId);
+
+	/**
+	 * Puts the message of the given transaction in the given 4 longs.
+	 */
+	void getTxMessage(long txId, long[] dest);
+
+	/**
+	 * @return the address id of the sender of the given transaction
+	 */
+	long getTxSender(long txId);
+
+	/**
+	 * @return the address id of the AT creator
+	 */
+	long getCreator();
+
+	/**
+	 * @return the current balance of the AT
+	 */
+	long getCurrentBalance();
+
+	/**
+	 * @return the balance the AT had at the end of its last run
+	 */
+	long getPreviousBalance();
+
+	/**
+	 * Sends the given amount (limited to the current balance) to the given
+	 * address.
+	 */
+	void sendAmount(long amount, long address);
+
+	/**
+	 * Sends the given 4 longs as a message to the given address.
+	 */
+	void sendMessage(long[] message, long address);
+}
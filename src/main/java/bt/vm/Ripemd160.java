@@ -0,0 +1,101 @@
+package bt.vm;
+
+/**
+ * Minimal RIPEMD-160 implementation, the JDK does not ship one.
+ *
+ * Used by the HASH160 functions of the {@link Machine}. Only messages of up to
+ * 55 bytes are supported (a single block), which is all an AT can hash.
+ *
+ * @author jjos
+ */
+final class Ripemd160 {
+
+	private static final int[] RL = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 7, 4, 13, 1, 10, 6, 15, 3,
+			12, 0, 9, 5, 2, 14, 11, 8, 3, 10, 14, 4, 9, 15, 8, 1, 2, 7, 0, 6, 13, 11, 5, 12, 1, 9, 11, 10, 0, 8, 12, 4,
+			13, 3, 7, 15, 14, 5, 6, 2, 4, 0, 5, 9, 7, 12, 2, 10, 14, 1, 3, 8, 11, 6, 15, 13 };
+	private static final int[] RR = { 5, 14, 7, 0, 9, 2, 11, 4, 13, 6, 15, 8, 1, 10, 3, 12, 6, 11, 3, 7, 0, 13, 5, 10,
+			14, 15, 8, 12, 4, 9, 1, 2, 15, 5, 1, 3, 7, 14, 6, 9, 11, 8, 12, 2, 10, 0, 4, 13, 8, 6, 4, 1, 3, 11, 15, 0, 5,
+			12, 2, 13, 9, 7, 10, 14, 12, 15, 10, 4, 1, 5, 8, 7, 6, 2, 13, 14, 0, 3, 9, 11 };
+	private static final int[] SL = { 11, 14, 15, 12, 5, 8, 7, 9, 11, 13, 14, 15, 6, 7, 9, 8, 7, 6, 8, 13, 11, 9, 7, 15,
+			7, 12, 15, 9, 11, 7, 13, 12, 11, 13, 6, 7, 14, 9, 13, 15, 14, 8, 13, 6, 5, 12, 7, 5, 11, 12, 14, 15, 14, 15,
+			9, 8, 9, 14, 5, 6, 8, 6, 5, 12, 9, 15, 5, 11, 6, 8, 13, 12, 5, 12, 13, 14, 11, 8, 5, 6 };
+	private static final int[] SR = { 8, 9, 9, 11, 13, 15, 15, 5, 7, 7, 8, 11, 14, 14, 12, 6, 9, 13, 15, 7, 12, 8, 9, 11,
+			7, 7, 12, 7, 6, 15, 13, 11, 9, 7, 15, 11, 8, 6, 6, 14, 12, 13, 5, 14, 13, 13, 7, 5, 15, 5, 8, 11, 14, 14, 6,
+			14, 6, 9, 12, 9, 12, 5, 15, 8, 8, 5, 12, 9, 12, 5, 14, 6, 8, 13, 6, 5, 15, 13, 11, 11 };
+	private static final int[] KL = { 0x00000000, 0x5a827999, 0x6ed9eba1, 0x8f1bbcdc, 0xa953fd4e };
+	private static final int[] KR = { 0x50a28be6, 0x5c4dd124, 0x6d703ef3, 0x7a6d76e9, 0x00000000 };
+
+	private final byte[] block = new byte[64];
+	private final int[] x = new int[16];
+
+	/**
+	 * Hashes the first len bytes of input into the first 20 bytes of out.
+	 */
+	void digest(byte[] input, int len, byte[] out) {
+		if (len > 55)
+			throw new IllegalArgumentException("Input too long: " + len);
+
+		for (int i = 0; i < block.length; i++)
+			block[i] = i < len ? input[i] : 0;
+		block[len] = (byte) 0x80;
+		long bits = len * 8L;
+		for (int i = 0; i < 8; i++)
+			block[56 + i] = (byte) (bits >>> (8 * i));
+		for (int i = 0; i < 16; i++) {
+			x[i] = (block[i * 4] & 0xff) | (block[i * 4 + 1] & 0xff) << 8 | (block[i * 4 + 2] & 0xff) << 16
+					| (block[i * 4 + 3] & 0xff) << 24;
+		}
+
+		int h0 = 0x67452301, h1 = 0xefcdab89, h2 = 0x98badcfe, h3 = 0x10325476, h4 = 0xc3d2e1f0;
+		int al = h0, bl = h1, cl = h2, dl = h3, el = h4;
+		int ar = h0, br = h1, cr = h2, dr = h3, er = h4;
+		for (int j = 0; j < 80; j++) {
+			int round = j / 16;
+			int t = Integer.rotateLeft(al + f(round, bl, cl, dl) + x[RL[j]] + KL[round], SL[j]) + el;
+			al = el;
+			el = dl;
+			dl = Integer.rotateLeft(cl, 10);
+			cl = bl;
+			bl = t;
+
+			t = Integer.rotateLeft(ar + f(4 - round, br, cr, dr) + x[RR[j]] + KR[round], SR[j]) + er;
+			ar = er;
+			er = dr;
+			dr = Integer.rotateLeft(cr, 10);
+			cr = br;
+			br = t;
+		}
+		int t = h1 + cl + dr;
+		h1 = h2 + dl + er;
+		h2 = h3 + el + ar;
+		h3 = h4 + al + br;
+		h4 = h0 + bl + cr;
+		h0 = t;
+
+		putInt(out, 0, h0);
+		putInt(out, 4, h1);
+		putInt(out, 8, h2);
+		putInt(out, 12, h3);
+		putInt(out, 16, h4);
+	}
+
+	private static int f(int round, int x, int y, int z) {
+		switch (round) {
+		case 0:
+			return x ^ y ^ z;
+		case 1:
+			return (x & y) | (~x & z);
+		case 2:
+			return (x | ~y) ^ z;
+		case 3:
+			return (x & z) | (y & ~z);
+		default:
+			return x ^ (y | ~z);
+		}
+	}
+
+	private static void putInt(byte[] out, int pos, int v) {
+		for (int i = 0; i < 4; i++)
+			out[pos + i] = (byte) (v >>> (8 * i));
+	}
+}
@@ -0,0 +1,93 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.CompilerCache;
+import bt.compiler.Field;
+import bt.compiler.Method;
+import bt.compiler.Printer;
+import bt.sample.Sha256_64;
+import bt.sample.TXCounter;
+
+/**
+ * Tests for the compiled contract cache, no node is required.
+ *
+ * @author jjos
+ */
+public class CompilerCacheTest {
+
+	@Test
+	public void testMemory() throws Exception {
+		CompilerCache cache = new CompilerCache(1, null);
+
+		Compiler c1 = cache.compile(TXCounter.class);
+		assertTrue(c1.getErrors().isEmpty());
+		assertSame(c1, cache.compile(TXCounter.class));
+
+		// evicts the first one
+		cache.compile(Sha256_64.class);
+		Compiler c2 = cache.compile(TXCounter.class);
+		assertNotSame(c1, c2);
+		assertArrayEquals(c1.getCode(), c2.getCode());
+	}
+
+	@Test
+	public void testDisk() throws Exception {
+		File dir = Files.createTempDirectory("atcache").toFile();
+		try {
+			Compiler c1 = new CompilerCache(10, dir).compile(MethodCallArgs.class);
+			assertEquals(1, dir.listFiles().length);
+
+			Compiler c2 = new CompilerCache(10, dir).compile(MethodCallArgs.class);
+			assertNotSame(c1, c2);
+			assertArrayEquals(c1.getCode(), c2.getCode());
+			assertEquals(c1.getDataPages(), c2.getDataPages());
+			assertEquals(c1.getCodeNPages(), c2.getCodeNPages());
+			for (Field f : c1.getFields())
+				assertEquals(f.getAddress(), c2.getFieldAddress(f.getName()));
+			for (Method m : c1.getMethods())
+				assertEquals(m.getHash(), c2.getMethod(m.getName()).getHash());
+			assertEquals(print(c1), print(c2));
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testOptimizeKey() throws Exception {
+		File dir = Files.createTempDirectory("atcache").toFile();
+		try {
+			CompilerCache cache = new CompilerCache(10, dir);
+			Compiler optimized = cache.compile(TXCounter.class);
+			Compiler plain = cache.compile(TXCounter.class, false);
+			assertNotSame(optimized, plain);
+			assertEquals(2, dir.listFiles().length);
+			assertTrue(optimized.getCode().length < plain.getCode().length);
+
+			// each one reads back its own entry
+			CompilerCache other = new CompilerCache(10, dir);
+			assertArrayEquals(plain.getCode(), other.compile(TXCounter.class, false).getCode());
+			assertArrayEquals(optimized.getCode(), other.compile(TXCounter.class).getCode());
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
+
+	private static String print(Compiler c) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Printer.print(c.getCode(), new PrintStream(baos, true, "UTF-8"), c);
+		return baos.toString("UTF-8");
+	}
+}
@@ -0,0 +1,690 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.OpCode;
+import bt.sample.HashLoop;
+
+import bt.sample.Sha256_64;
+import bt.sample.TXCounter;
+import bt.vm.Machine;
+
+/**
+ * Runs contracts on the emulator both as Java and as compiled bytecode, the
+ * results should match.
+ *
+ * No node is required for these tests.
+ *
+ * @author jjos
+ */
+public class EmulatorBytecodeTest {
+
+	@Test
+	public void testCounter() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("COUNTER_CREATOR");
+		Address user1 = emu.getAddress("COUNTER_USER1");
+		Address user2 = emu.getAddress("COUNTER_USER2");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.airDrop(user1, 1000 * Contract.ONE_BURST);
+		emu.airDrop(user2, 1000 * Contract.ONE_BURST);
+
+		Address java = emu.getAddress("COUNTER_JAVA");
+		Address bytecode = emu.getAddress("COUNTER_BYTECODE");
+		emu.createConctract(creator, java, TXCounter.class, Contract.ONE_BURST);
+		emu.createConctract(creator, bytecode, TXCounter.class, Contract.ONE_BURST, true);
+		emu.forgeBlock();
+
+		for (int i = 0; i < 5; i++) {
+			emu.send(user1, java, 2 * Contract.ONE_BURST);
+			emu.send(user2, java, 3 * Contract.ONE_BURST);
+			emu.send(user1, bytecode, 2 * Contract.ONE_BURST);
+			emu.send(user2, bytecode, 3 * Contract.ONE_BURST);
+			emu.forgeBlock();
+		}
+		emu.forgeBlock();
+
+		TXCounter c = (TXCounter) java.getContract();
+		BytecodeContract bc = bytecode.getBytecode();
+		assertNotNull(bc);
+		assertFalse(bc.getMachine().isDead());
+		assertEquals(10, bc.getFieldValue("ntx"));
+		assertEquals(getField(c, "ntx"), bc.getFieldValue("ntx"));
+		assertEquals(user2.getId(), bc.getFieldValue("address"));
+
+		// only the compiled contract pays for the steps
+		long fees = emu.getFeesPaid(bytecode);
+		assertTrue(fees > 0);
+		assertEquals(0, fees % Contract.STEP_FEE);
+		assertEquals(java.getBalance(), bytecode.getBalance() + fees);
+	}
+
+	@Test
+	public void testMethodCall() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("CALL_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Address bytecode = emu.getAddress("CALL_BYTECODE");
+		emu.createConctract(creator, bytecode, MethodCallArgs.class, Contract.ONE_BURST, true);
+		emu.forgeBlock();
+
+		java.lang.reflect.Method m = MethodCallArgs.class.getMethod("method2", long.class, long.class);
+		emu.send(creator, bytecode, Contract.ONE_BURST, Register.newMethodCall(m, new Object[] { 10L, 20L, null }));
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		BytecodeContract bc = bytecode.getBytecode();
+		assertEquals(2, bc.getFieldValue("methodCalled"));
+		assertEquals(10, bc.getFieldValue("arg1"));
+		assertEquals(20, bc.getFieldValue("arg2"));
+		assertEquals(-1, bc.getFieldValue("arg3"));
+	}
+
+	@Test
+	public void testLocalCalls() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("LOCALS_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Address java = emu.getAddress("LOCALS_JAVA");
+		Address bytecode = emu.getAddress("LOCALS_BYTECODE");
+		emu.createConctract(creator, java, LocalCalls.class, Contract.ONE_BURST);
+		emu.createConctract(creator, bytecode, LocalCalls.class, Contract.ONE_BURST, true);
+		emu.forgeBlock();
+		emu.send(creator, java, 11 * Contract.ONE_BURST);
+		emu.send(creator, bytecode, 11 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		LocalCalls c = (LocalCalls) java.getContract();
+		BytecodeContract bc = bytecode.getBytecode();
+		assertFalse(bc.getMachine().isDead());
+		assertEquals(13, bc.getFieldValue("sum"));
+		assertEquals(getField(c, "sum"), bc.getFieldValue("sum"));
+		assertEquals(getField(c, "diff"), bc.getFieldValue("diff"));
+		assertEquals(120, bc.getFieldValue("fact"));
+	}
+
+	@Test
+	public void testSha256() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("SHA_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Address bytecode = emu.getAddress("SHA_BYTECODE");
+		emu.createConctract(creator, bytecode, Sha256_64.class, Contract.ONE_BURST, true);
+		emu.forgeBlock();
+		emu.send(creator, bytecode, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		Register input = Register.newInstance(1, 2, 0, 0);
+		assertEquals(Contract.performSHA256_(input).getValue1(), bytecode.getBytecode().getFieldValue("sha256_64"));
+	}
+
+	@Test
+	public void testOptimizer() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("OPT_CREATOR");
+		Address user = emu.getAddress("OPT_USER");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.airDrop(user, 1000 * Contract.ONE_BURST);
+
+		Compiler plain = new Compiler(TXCounter.class);
+		plain.setOptimize(false);
+		plain.compile();
+		plain.link();
+		Compiler optimized = new Compiler(TXCounter.class);
+		optimized.compile();
+		optimized.link();
+		assertTrue(optimized.getErrors().isEmpty());
+		assertTrue(optimized.getCode().length < plain.getCode().length);
+
+		Address plainAddress = emu.getAddress("OPT_PLAIN");
+		Address optimizedAddress = emu.getAddress("OPT_OPTIMIZED");
+		emu.createConctract(creator, plainAddress, plain, Contract.ONE_BURST);
+		emu.createConctract(creator, optimizedAddress, optimized, Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		for (int i = 0; i < 5; i++) {
+			emu.send(user, plainAddress, (i + 2) * Contract.ONE_BURST);
+			emu.send(user, optimizedAddress, (i + 2) * Contract.ONE_BURST);
+			emu.forgeBlock();
+		}
+		emu.forgeBlock();
+
+		BytecodeContract bc = optimizedAddress.getBytecode();
+		assertFalse(bc.getMachine().isDead());
+		assertEquals(5, bc.getFieldValue("ntx"));
+		assertEquals(plainAddress.getBytecode().getFieldValues(), bc.getFieldValues());
+
+		// same result, cheaper
+		long plainFees = emu.getFeesPaid(plainAddress);
+		long optimizedFees = emu.getFeesPaid(optimizedAddress);
+		assertTrue(optimizedFees < plainFees);
+		assertEquals(plainAddress.getBalance() + plainFees, optimizedAddress.getBalance() + optimizedFees);
+	}
+
+	/**
+	 * Arithmetic with constants the optimizer can simplify.
+	 */
+	public static class Arithmetic extends Contract {
+		long a, b, c, d, e, f;
+
+		@Override
+		public void txReceived() {
+			long x = getCurrentTxAmount();
+			a = x + 1;
+			b = x - 1;
+			c = x * 1 + 0;
+			d = (x & -1L) | 0;
+			e = x * 0 + (x ^ 0);
+			f = x / 1 - x % 1;
+		}
+	}
+
+	@Test
+	public void testConstantFolding() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Compiler plain = new Compiler(Arithmetic.class);
+		plain.setOptimize(false);
+		plain.compile();
+		plain.link();
+		Compiler optimized = new Compiler(Arithmetic.class);
+		optimized.compile();
+		optimized.link();
+		assertTrue(optimized.getErrors().isEmpty());
+
+		Address plainAddress = emu.getAddress("PLAIN");
+		Address optimizedAddress = emu.getAddress("OPTIMIZED");
+		emu.createConctract(creator, plainAddress, plain, Contract.ONE_BURST);
+		emu.createConctract(creator, optimizedAddress, optimized, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.send(creator, plainAddress, 3 * Contract.ONE_BURST);
+		emu.send(creator, optimizedAddress, 3 * Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		BytecodeContract bc = optimizedAddress.getBytecode();
+		long x = 3 * Contract.ONE_BURST - Contract.ONE_BURST;
+		assertEquals(x + 1, bc.getFieldValue("a"));
+		assertEquals(x - 1, bc.getFieldValue("b"));
+		assertEquals(x, bc.getFieldValue("c"));
+		assertEquals(x, bc.getFieldValue("d"));
+		assertEquals(x, bc.getFieldValue("e"));
+		assertEquals(x, bc.getFieldValue("f"));
+		assertEquals(plainAddress.getBytecode().getFieldValues(), bc.getFieldValues());
+
+		ArrayList<ActivationCost> plainCosts = emu.getActivationCosts(plainAddress);
+		ArrayList<ActivationCost> optimizedCosts = emu.getActivationCosts(optimizedAddress);
+		// about 2 steps less for each simplified operation, on top of the other optimizations
+		assertTrue(optimizedCosts.get(1).getSteps() + 40 <= plainCosts.get(1).getSteps());
+	}
+
+	/**
+	 * A loop calling small private helpers.
+	 */
+	public static class Helpers extends Contract {
+		long total, count;
+
+		@Override
+		public void txReceived() {
+			for (long i = 0; i < 10; i++)
+				add(i);
+			count = twice(count);
+		}
+
+		private void add(long value) {
+			total += value;
+			count++;
+		}
+
+		private long twice(long value) {
+			if (value > 100)
+				return value;
+			return value * 2;
+		}
+	}
+
+	@Test
+	public void testInlining() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Compiler plain = new Compiler(Helpers.class);
+		plain.setOptimize(false);
+		plain.compile();
+		plain.link();
+		Compiler optimized = new Compiler(Helpers.class);
+		optimized.compile();
+		optimized.link();
+		assertTrue(optimized.getErrors().isEmpty());
+		// the helpers, called only once, are gone
+		assertTrue(optimized.getCode().length < plain.getCode().length);
+
+		Address plainAddress = emu.getAddress("PLAIN");
+		Address optimizedAddress = emu.getAddress("OPTIMIZED");
+		emu.createConctract(creator, plainAddress, plain, Contract.ONE_BURST);
+		emu.createConctract(creator, optimizedAddress, optimized, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.send(creator, plainAddress, 3 * Contract.ONE_BURST);
+		emu.send(creator, optimizedAddress, 3 * Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		BytecodeContract bc = optimizedAddress.getBytecode();
+		assertEquals(45, bc.getFieldValue("total"));
+		assertEquals(20, bc.getFieldValue("count"));
+		assertEquals(plainAddress.getBytecode().getFieldValues(), bc.getFieldValues());
+
+		ArrayList<ActivationCost> plainCosts = emu.getActivationCosts(plainAddress);
+		ArrayList<ActivationCost> optimizedCosts = emu.getActivationCosts(optimizedAddress);
+		// JMP_SUB and RET_SUB of the 11 calls, on top of the other optimizations
+		assertTrue(optimizedCosts.get(1).getSteps() + 120 <= plainCosts.get(1).getSteps());
+	}
+
+	/**
+	 * Comparisons, equality of addresses and messages and bitwise negation.
+	 */
+	public static class Comparisons extends Contract {
+		long less, atLeast, different, inverted;
+		boolean fromCreator, sameMessage;
+		Register msg, last;
+
+		@Override
+		public void txReceived() {
+			long x = getCurrentTxAmount();
+			long y = getCurrentBalance();
+			if (x < y)
+				less++;
+			if (x >= 2 * ONE_BURST)
+				atLeast++;
+			if (x != y)
+				different++;
+			inverted = ~x;
+			fromCreator = getCurrentTx().getSenderAddress().equals(getCreator());
+			msg = getCurrentTx().getMessage();
+			sameMessage = msg.equals(last);
+			last = msg;
+		}
+	}
+
+	@Test
+	public void testComparisons() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		Address other = emu.getAddress("OTHER");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.airDrop(other, 1000 * Contract.ONE_BURST);
+
+		Address java = emu.getAddress("JAVA");
+		Address bytecode = emu.getAddress("BYTECODE");
+		emu.createConctract(creator, java, Comparisons.class, Contract.ONE_BURST);
+		emu.createConctract(creator, bytecode, Comparisons.class, Contract.ONE_BURST, true);
+		emu.forgeBlock();
+
+		Register msg = Register.newInstance(1, 2, 3, 4);
+		long[] amounts = { 3, 1, 5, 2 };
+		for (int i = 0; i < amounts.length; i++) {
+			Address sender = i % 2 == 0 ? creator : other;
+			Register m = i < 2 ? msg : Register.newInstance(1, 2, 3, i);
+			emu.send(sender, java, amounts[i] * Contract.ONE_BURST, m);
+			emu.send(sender, bytecode, amounts[i] * Contract.ONE_BURST, m);
+			emu.forgeBlock();
+
+			Comparisons c = (Comparisons) java.getContract();
+			BytecodeContract bc = bytecode.getBytecode();
+			assertFalse(bc.getMachine().isDead());
+			assertEquals(getField(c, "less"), bc.getFieldValue("less"));
+			assertEquals(getField(c, "atLeast"), bc.getFieldValue("atLeast"));
+			assertEquals(getField(c, "different"), bc.getFieldValue("different"));
+			assertEquals(getField(c, "inverted"), bc.getFieldValue("inverted"));
+			assertEquals(i % 2 == 0 ? 1 : 0, bc.getFieldValue("fromCreator"));
+			assertEquals(i == 1, c.sameMessage);
+			assertEquals(i == 1 ? 1 : 0, bc.getFieldValue("sameMessage"));
+		}
+	}
+
+	/**
+	 * Expressions keeping intermediate values on the stack.
+	 */
+	public static class Expressions extends Contract {
+		long a, b;
+		boolean fromCreator;
+
+		@Override
+		public void txReceived() {
+			long x = getCurrentTxAmount();
+			a = (x + 7) * (x - 3) / (x % 5 + 1);
+			b = x - (a / 3 - x * 2);
+			fromCreator = getCurrentTx().getSenderAddress().equals(getCreator());
+		}
+	}
+
+	@Test
+	public void testStackSlots() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Compiler plain = new Compiler(Expressions.class);
+		plain.setOptimize(false);
+		plain.compile();
+		plain.link();
+		Compiler optimized = new Compiler(Expressions.class);
+		optimized.compile();
+		optimized.link();
+		assertTrue(optimized.getErrors().isEmpty());
+
+		Address plainAddress = emu.getAddress("PLAIN");
+		Address optimizedAddress = emu.getAddress("OPTIMIZED");
+		emu.createConctract(creator, plainAddress, plain, Contract.ONE_BURST);
+		emu.createConctract(creator, optimizedAddress, optimized, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.send(creator, plainAddress, 3 * Contract.ONE_BURST);
+		emu.send(creator, optimizedAddress, 3 * Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		BytecodeContract bc = optimizedAddress.getBytecode();
+		long x = 3 * Contract.ONE_BURST - Contract.ONE_BURST;
+		long a = (x + 7) * (x - 3) / (x % 5 + 1);
+		assertEquals(a, bc.getFieldValue("a"));
+		assertEquals(x - (a / 3 - x * 2), bc.getFieldValue("b"));
+		assertEquals(1, bc.getFieldValue("fromCreator"));
+		assertEquals(plainAddress.getBytecode().getFieldValues(), bc.getFieldValues());
+
+		ArrayList<ActivationCost> plainCosts = emu.getActivationCosts(plainAddress);
+		ArrayList<ActivationCost> optimizedCosts = emu.getActivationCosts(optimizedAddress);
+		// the pushes and pops left by the other optimizations are gone too
+		assertTrue(optimizedCosts.get(1).getSteps() + 26 <= plainCosts.get(1).getSteps());
+	}
+
+	/**
+	 * Nested expressions keeping values on the stack across branches.
+	 */
+	public static class NestedExpressions extends Contract {
+		long a, b, c;
+
+		@Override
+		public void txReceived() {
+			long x = getCurrentTxAmount() / ONE_BURST;
+			long y = x * 7 % 11;
+			a = (x - y) * ((x + 1) * (y - 2) - (x * y + 3));
+			if (y > x)
+				b = (x * 3 - (x * 2 - y)) * (x - (y - (x * 3 - y)));
+			else
+				b = (x * 3 - (y + x * 5)) * (y - (x - (y * 3 - x)));
+			c = a - (b - x * (y + (a - b * (a - y))));
+		}
+	}
+
+	@Test
+	public void testNestedStackSlots() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Address java = emu.getAddress("JAVA");
+		Address bytecode = emu.getAddress("BYTECODE");
+		emu.createConctract(creator, java, NestedExpressions.class, Contract.ONE_BURST);
+		emu.createConctract(creator, bytecode, NestedExpressions.class, Contract.ONE_BURST, true);
+		emu.forgeBlock();
+
+		for (long amount : new long[] { 2, 5, 40 }) {
+			emu.send(creator, java, amount * Contract.ONE_BURST);
+			emu.send(creator, bytecode, amount * Contract.ONE_BURST);
+			emu.forgeBlock();
+
+			NestedExpressions c = (NestedExpressions) java.getContract();
+			BytecodeContract bc = bytecode.getBytecode();
+			assertFalse(bc.getMachine().isDead());
+			assertEquals(getField(c, "a"), bc.getFieldValue("a"));
+			assertEquals(getField(c, "b"), bc.getFieldValue("b"));
+			assertEquals(getField(c, "c"), bc.getFieldValue("c"));
+		}
+	}
+
+	/**
+	 * A recursive method between methods with locals on fixed addresses.
+	 */
+	public static class RecursiveCalls extends Contract {
+		long sum, sum2;
+
+		@Override
+		public void txReceived() {
+			long keep = getCurrentTxAmount() / ONE_BURST;
+			long keep2 = keep * 10;
+			sum = keep + rec(3);
+			sum2 = keep2 + rec(2);
+		}
+
+		private long rec(long n) {
+			if (n == 0)
+				return leaf(n);
+			return leaf(n) + rec(n - 1);
+		}
+
+		private long leaf(long n) {
+			long a = n * 7;
+			long b = a + 3;
+			return a * b;
+		}
+	}
+
+	@Test
+	public void testRecursiveLocals() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Address java = emu.getAddress("JAVA");
+		emu.createConctract(creator, java, RecursiveCalls.class, Contract.ONE_BURST);
+		Address[] addresses = new Address[2];
+		for (int k = 0; k < addresses.length; k++) {
+			Compiler comp = new Compiler(RecursiveCalls.class);
+			comp.setOptimize(k == 1);
+			comp.compile();
+			comp.link();
+			assertTrue(comp.getErrors().isEmpty());
+			addresses[k] = emu.getAddress("BYTECODE" + k);
+			emu.createConctract(creator, addresses[k], comp, Contract.ONE_BURST);
+		}
+		emu.forgeBlock();
+		emu.send(creator, java, 5 * Contract.ONE_BURST);
+		for (Address a : addresses)
+			emu.send(creator, a, 5 * Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		RecursiveCalls c = (RecursiveCalls) java.getContract();
+		for (Address a : addresses) {
+			BytecodeContract bc = a.getBytecode();
+			assertFalse(bc.getMachine().isDead());
+			assertEquals(getField(c, "sum"), bc.getFieldValue("sum"));
+			assertEquals(getField(c, "sum2"), bc.getFieldValue("sum2"));
+		}
+	}
+
+	/**
+	 * Sums the amounts received.
+	 */
+	public static class Sum extends Contract {
+		long total;
+
+		@Override
+		public void txReceived() {
+			total += getCurrentTxAmount();
+		}
+	}
+
+	/**
+	 * The same as {@link Sum}, with helpers never called.
+	 */
+	public static class SumUnused extends Contract {
+		long total;
+
+		@Override
+		public void txReceived() {
+			total += getCurrentTxAmount();
+		}
+
+		private long unused(long value) {
+			for (long i = 0; i < 10; i++)
+				value = value * 3 + other(value);
+			return value;
+		}
+
+		private long other(long value) {
+			return value / 7;
+		}
+	}
+
+	@Test
+	public void testUnusedMethods() throws Exception {
+		Compiler sum = new Compiler(Sum.class);
+		sum.setOptimize(false);
+		sum.compile();
+		sum.link();
+		Compiler unused = new Compiler(SumUnused.class);
+		unused.setOptimize(false);
+		unused.compile();
+		unused.link();
+		assertTrue(unused.getErrors().isEmpty());
+		assertArrayEquals(sum.getCode(), unused.getCode());
+	}
+
+	@Test(timeout = 10000)
+	public void testErrorHandler() throws Exception {
+		byte invalid = (byte) 0xff;
+		byte[] code = { OpCode.e_op_code_ERR_ADR, 6, 0, 0, 0, invalid, OpCode.e_op_code_FIN_IMD };
+		Machine handled = new Machine(code, 1);
+		assertEquals(Machine.STATUS_FINISHED, handled.run(1000, null));
+		assertEquals(Machine.ERROR_INVALID_OPCODE, handled.getError());
+		assertEquals(5, handled.getErrorPc());
+		assertFalse(handled.isDead());
+
+		// handler out of the code
+		code = new byte[] { OpCode.e_op_code_ERR_ADR, 100, 0, 0, 0, invalid };
+		Machine outside = new Machine(code, 1);
+		assertEquals(Machine.STATUS_ERROR, outside.run(1000, null));
+		assertTrue(outside.isDead());
+
+		// handler failing on itself
+		code = new byte[] { OpCode.e_op_code_ERR_ADR, 5, 0, 0, 0, invalid };
+		Machine itself = new Machine(code, 1);
+		assertEquals(Machine.STATUS_ERROR, itself.run(1000, null));
+		assertTrue(itself.isDead());
+		assertEquals(5, itself.getErrorPc());
+	}
+
+	@Test
+	public void testOutOfBalance() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("BALANCE_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		// runs forever, until there is no more balance
+		Address bytecode = emu.getAddress("BALANCE_BYTECODE");
+		emu.createConctract(creator, bytecode, HashLoop.class, Contract.ONE_BURST, true);
+		emu.forgeBlock();
+		emu.send(creator, bytecode, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		ArrayList<ActivationCost> costs = emu.getActivationCosts(bytecode);
+		ActivationCost last = costs.get(costs.size() - 1);
+		assertTrue(last.isOutOfBalance());
+		assertTrue(last.getApiCalls() > 0);
+		assertEquals(last.getSteps() * Contract.STEP_FEE, last.getFee());
+		assertTrue(bytecode.getBalance() < Machine.API_STEP_MULTIPLIER * Contract.STEP_FEE);
+		assertEquals(2 * Contract.ONE_BURST, bytecode.getBalance() + emu.getFeesPaid(bytecode));
+
+		// not running until charged again
+		int runs = costs.size();
+		emu.forgeBlock();
+		assertEquals(runs, costs.size());
+		emu.send(creator, bytecode, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.forgeBlock();
+		assertEquals(runs + 1, costs.size());
+		assertTrue(costs.get(runs).isOutOfBalance());
+		assertEquals(3 * Contract.ONE_BURST, bytecode.getBalance() + emu.getFeesPaid(bytecode));
+	}
+
+	/**
+	 * Many public methods, so the dispatch needs jumps that do not fit a branch.
+	 */
+	public static class ManyMethods extends Contract {
+		long called, arg;
+
+		public void m1(long a) { called = 1; arg = a; }
+		public void m2(long a) { called = 2; arg = a; }
+		public void m3(long a) { called = 3; arg = a; }
+		public void m4(long a) { called = 4; arg = a; }
+		public void m5(long a) { called = 5; arg = a; }
+		public void m6(long a) { called = 6; arg = a; }
+		public void m7(long a, long b) { called = 7; arg = a + b; }
+		public void m8(long a, long b) { called = 8; arg = a + b; }
+		public void m9(long a, long b) { called = 9; arg = a + b; }
+		public void m10(long a, long b, long c) { called = 10; arg = a + b + c; }
+		public void m11(long a, long b, long c) { called = 11; arg = a + b + c; }
+		public void m12() { called = 12; arg = 0; }
+		public void m13() { called = 13; arg = 0; }
+
+		@Override
+		public void txReceived() {
+			called = -1;
+		}
+	}
+
+	@Test
+	public void testDispatch() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		Address bytecode = emu.getAddress("MANY_METHODS");
+		emu.createConctract(creator, bytecode, ManyMethods.class, Contract.ONE_BURST, true);
+		emu.forgeBlock();
+		BytecodeContract bc = bytecode.getBytecode();
+		ArrayList<ActivationCost> costs = emu.getActivationCosts(bytecode);
+
+		long minSteps = Long.MAX_VALUE, maxSteps = 0;
+		for (java.lang.reflect.Method m : ManyMethods.class.getDeclaredMethods()) {
+			if (!m.getName().startsWith("m"))
+				continue;
+			int n = Integer.parseInt(m.getName().substring(1));
+			Object[] args = new Object[m.getParameterCount()];
+			Arrays.fill(args, (long) n);
+			emu.send(creator, bytecode, Contract.ONE_BURST, Register.newMethodCall(m, args));
+			emu.forgeBlock();
+			assertEquals(n, bc.getFieldValue("called"));
+			assertEquals(n * args.length, bc.getFieldValue("arg"));
+
+			// methods doing the same cost the same, apart from the tree depth
+			if (n <= 6) {
+				long steps = costs.get(costs.size() - 1).getSteps();
+				minSteps = Math.min(minSteps, steps);
+				maxSteps = Math.max(maxSteps, steps);
+			}
+		}
+		assertTrue(maxSteps - minSteps <= 4);
+
+		emu.send(creator, bytecode, Contract.ONE_BURST, "no method");
+		emu.forgeBlock();
+		assertEquals(-1, bc.getFieldValue("called"));
+	}
+
+	private static long getField(Contract c, String name) throws Exception {
+		java.lang.reflect.Field f = c.getClass().getDeclaredField(name);
+		f.setAccessible(true);
+		return f.getLong(c);
+	}
+}
@@ -0,0 +1,494 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.sample.PaymentChannel;
+import bt.sample.TXCounter;
+
+/**
+ * Tests for the emulated block-chain, no node is required.
+ *
+ * @author jjos
+ */
+public class EmulatorTest {
+
+	@Test
+	public void testSha256() throws Exception {
+		Register input = Register.newInstance(1, -2, Long.MAX_VALUE, Long.MIN_VALUE);
+
+		ByteBuffer b = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < 4; i++)
+			b.putLong(input.value[i]);
+		ByteBuffer expected = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(b.array()))
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+		Register hash = Contract.performSHA256_(input);
+		for (int i = 0; i < 4; i++)
+			assertEquals(expected.getLong(i * 8), hash.value[i]);
+
+		// hashing in place gives the same result
+		Contract.performSHA256_(input, input);
+		assertTrue(hash.equals(input));
+	}
+
+	@Test(timeout = 60000)
+	public void testAddresses() throws Exception {
+		Emulator emu = Emulator.getInstance();
+
+		int n = 100000;
+		Address[] ads = new Address[n];
+		for (int i = 0; i < n; i++)
+			ads[i] = emu.getAddress("ADDRESSES_" + i);
+
+		for (int i = 0; i < n; i++) {
+			assertSame(ads[i], emu.findAddress("ADDRESSES_" + i));
+			assertSame(ads[i], emu.getAddress(ads[i].getId()));
+		}
+		assertNull(emu.findAddress("ADDRESSES_" + n));
+
+		// same account, looked up by id and then by its RS
+		Address byId = emu.getAddress(1234567L);
+		assertSame(byId, emu.getAddress(byId.getRsAddress()));
+		assertTrue(emu.getAddresses().contains(byId));
+	}
+
+	@Test(timeout = 60000)
+	public void testTxAfter() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address sender = emu.getAddress("TXAFTER_SENDER");
+		Address receiver = emu.getAddress("TXAFTER_RECEIVER");
+		emu.airDrop(sender, 100000 * Contract.ONE_BURST);
+
+		int nblocks = 2000;
+		for (int i = 0; i < nblocks; i++) {
+			emu.send(sender, receiver, Contract.ONE_BURST);
+			emu.send(sender, receiver, 2 * Contract.ONE_BURST);
+			emu.forgeBlock();
+		}
+		// not forged yet, so not visible
+		emu.send(sender, receiver, Contract.ONE_BURST);
+
+		int count = 0;
+		Timestamp ts = null;
+		Transaction tx = emu.getTxAfter(receiver, ts);
+		while (tx != null) {
+			assertTrue(ts == null || tx.getTimestamp().getValue() > ts.getValue());
+			ts = tx.getTimestamp();
+			count++;
+			tx = emu.getTxAfter(receiver, ts);
+		}
+		assertEquals(2 * nblocks, count);
+
+		// only the larger amounts
+		count = 0;
+		long value = Long.MIN_VALUE;
+		while ((tx = emu.getTxAfter(receiver, value, 2 * Contract.ONE_BURST)) != null) {
+			value = tx.getTimestamp().getValue();
+			count++;
+		}
+		assertEquals(nblocks, count);
+	}
+
+	@Test(timeout = 120000)
+	public void testParallelWorlds() throws Exception {
+		int nworlds = 64;
+		int ntxs = 20;
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			ArrayList<Future<Emulator>> worlds = new ArrayList<>();
+			for (int w = 0; w < nworlds; w++) {
+				worlds.add(pool.submit(() -> {
+					// same names on every world, they should not interfere
+					Emulator emu = new Emulator();
+					Address creator = emu.getAddress("CREATOR");
+					Address user = emu.getAddress("USER");
+					Address sleeper = emu.getAddress("SLEEPER");
+					Address counter = emu.getAddress("COUNTER");
+					emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+					emu.airDrop(user, 1000 * Contract.ONE_BURST);
+					emu.createConctract(creator, sleeper, SchedulerTest.Sleeper.class, Contract.ONE_BURST);
+					emu.createConctract(creator, counter, TXCounter.class, Contract.ONE_BURST, true);
+					emu.forgeBlock();
+
+					emu.send(user, sleeper, 11 * Contract.ONE_BURST);
+					for (int i = 0; i < ntxs; i++) {
+						emu.send(user, counter, 2 * Contract.ONE_BURST);
+						emu.forgeBlock();
+					}
+					return emu;
+				}));
+			}
+
+			for (Future<Emulator> f : worlds) {
+				Emulator emu = f.get();
+				Address sleeper = emu.findAddress("SLEEPER");
+				assertSame(emu, sleeper.getContract().emulator);
+				assertFalse(sleeper.isSleeping());
+				assertEquals(ntxs, emu.findAddress("COUNTER").getBytecode().getFieldValue("ntx"));
+				assertEquals(1000 * Contract.ONE_BURST - Contract.ONE_BURST - ntxs * 2 * Contract.ONE_BURST,
+						emu.findAddress("USER").getBalance());
+				emu.close();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testFork() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		Address user = emu.getAddress("USER");
+		Address counter = emu.getAddress("COUNTER");
+		Address bytecode = emu.getAddress("BYTECODE");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.airDrop(user, 1000 * Contract.ONE_BURST);
+		emu.createConctract(creator, counter, TXCounter.class, Contract.ONE_BURST);
+		emu.createConctract(creator, bytecode, TXCounter.class, Contract.ONE_BURST, true);
+		emu.forgeBlock();
+		for (int i = 0; i < 3; i++) {
+			emu.send(user, counter, 2 * Contract.ONE_BURST);
+			emu.send(user, bytecode, 2 * Contract.ONE_BURST);
+			emu.forgeBlock();
+		}
+		// a pending transaction, only forged on the original
+		emu.send(user, counter, 2 * Contract.ONE_BURST);
+
+		Emulator snapshot = emu.snapshot();
+		emu.forgeBlock();
+		try {
+			snapshot.send(user, counter, Contract.ONE_BURST);
+			fail("snapshots cannot be changed");
+		} catch (IllegalStateException expected) {
+		}
+
+		Emulator fork = snapshot.fork();
+		Address forkUser = fork.getAddress("USER");
+		Address forkCounter = fork.getAddress("COUNTER");
+		assertNotSame(user, forkUser);
+		assertEquals(user, forkUser);
+		assertSame(fork, forkCounter.getContract().emulator);
+		// transactions are shared with the original
+		assertSame(emu.getTxs().get(2), fork.getTxs().get(2));
+
+		// addresses of the original can be used on the fork
+		fork.send(user, bytecode, 2 * Contract.ONE_BURST);
+		fork.send(user, bytecode, 2 * Contract.ONE_BURST);
+		fork.forgeBlock();
+		fork.forgeBlock();
+
+		assertEquals(4, ntx(counter));
+		assertEquals(4, ntx(forkCounter));
+		assertSame(forkUser, field(forkCounter.getContract(), "address"));
+		assertEquals(3, bytecode.getBytecode().getFieldValue("ntx"));
+		assertEquals(5, fork.getAddress("BYTECODE").getBytecode().getFieldValue("ntx"));
+		assertEquals(user.getBalance() - 4 * Contract.ONE_BURST, forkUser.getBalance());
+		assertEquals(emu.getTxs().size() + 2, fork.getTxs().size());
+
+		// the snapshot is still at the same point
+		Emulator fork2 = snapshot.fork();
+		fork2.forgeBlock();
+		assertEquals(4, ntx(fork2.getAddress("COUNTER")));
+		assertEquals(3, fork2.getAddress("BYTECODE").getBytecode().getFieldValue("ntx"));
+		assertEquals(user.getBalance(), fork2.getAddress("USER").getBalance());
+
+		for (Emulator e : new Emulator[] { emu, snapshot, fork, fork2 })
+			e.close();
+	}
+
+	@Test
+	public void testSeed() throws Exception {
+		assertArrayEquals(hashes(new Emulator(42), false, 1), hashes(new Emulator(42), false, 1));
+		assertFalse(java.util.Arrays.equals(hashes(new Emulator(42), false, 1), hashes(new Emulator(43), false, 1)));
+
+		// chained hashes depend on the transactions
+		assertArrayEquals(hashes(new Emulator(42), true, 1), hashes(new Emulator(42), true, 1));
+		long[] h1 = hashes(new Emulator(42), true, 1);
+		long[] h2 = hashes(new Emulator(42), true, 2);
+		assertEquals(h1[0], h2[0]);
+		assertNotEquals(h1[h1.length - 1], h2[h2.length - 1]);
+	}
+
+	@Test
+	public void testChainLog() throws Exception {
+		File file = File.createTempFile("chain", ".log");
+		try {
+			Emulator emu = new Emulator();
+			Address user = emu.getAddress("USER");
+			Address receiver = emu.getAddress("RECEIVER");
+			emu.airDrop(user, 1000 * Contract.ONE_BURST);
+			try (ChainLog log = ChainLog.create(file)) {
+				emu.setChainLog(log);
+				for (int i = 0; i < 100; i++) {
+					for (int j = 0; j < i % 4; j++)
+						emu.send(user, receiver, Contract.ONE_BURST, "block " + i);
+					emu.forgeBlock();
+				}
+			}
+
+			try (ChainLog.Reader log = ChainLog.open(file)) {
+				long[] value = new long[4];
+				int ntxs = 0, nblocks = 0;
+				for (long r = 0; r < log.size(); r++) {
+					if (log.isBlock(r)) {
+						Block b = emu.getBlocks().get(emu.getBlocks().size() - 100 + nblocks++);
+						assertEquals(b.getHeight(), log.getHeight(r));
+						assertEquals(b.txs.size(), log.getTxCount(r));
+						log.getValue(r, value);
+						assertArrayEquals(b.hash.value, value);
+						continue;
+					}
+					Transaction tx = emu.getTx(log.getTxId(r));
+					assertEquals(tx.block.getHeight(), log.getHeight(r));
+					assertEquals(user.getId(), log.getTxSender(r));
+					assertEquals(receiver.getId(), log.getTxReceiver(r));
+					assertEquals(tx.amount, log.getTxAmount(r));
+					assertEquals(tx.ts.value, log.getTxTimestamp(r));
+					log.getValue(r, value);
+					assertArrayEquals(tx.msg.value, value);
+					ntxs++;
+				}
+				assertEquals(100, nblocks);
+				assertEquals(150, ntxs);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testCompactHistory() throws Exception {
+		Emulator[] emus = { new Emulator(1), new Emulator(1) };
+		emus[1].setCompactHistory();
+		for (Emulator emu : emus) {
+			Address user = emu.getAddress("USER");
+			emu.airDrop(user, 10000 * Contract.ONE_BURST);
+			emu.createConctract(user, emu.getAddress("COUNTER"), TXCounter.class, Contract.ONE_BURST);
+			emu.createConctract(user, emu.getAddress("BYTECODE"), TXCounter.class, Contract.ONE_BURST, true);
+			emu.createConctract(user, emu.getAddress("SLEEP"), SchedulerTest.Sleeper.class, Contract.ONE_BURST);
+			emu.forgeBlock();
+			// the second one is postponed while the contract sleeps
+			emu.send(user, emu.getAddress("SLEEP"), 2 * Contract.ONE_BURST);
+			emu.forgeBlock();
+			emu.send(user, emu.getAddress("SLEEP"), 2 * Contract.ONE_BURST);
+			emu.forgeBlock();
+			for (int i = 0; i < 200; i++) {
+				emu.send(user, emu.getAddress(i % 2 == 0 ? "COUNTER" : "BYTECODE"), 2 * Contract.ONE_BURST,
+						i % 3 == 0 ? "tx " + i : null);
+				if (i % 5 == 0)
+					emu.forgeBlock();
+			}
+			emu.forgeBlock();
+		}
+
+		assertTrue(emus[1].getPrevBlock().txs.isEmpty());
+		assertEquals(emus[0].getTxs().size(), emus[1].getTxs().size());
+		BytecodeContract[] bcs = { emus[0].getAddress("BYTECODE").getBytecode(),
+				emus[1].getAddress("BYTECODE").getBytecode() };
+		int postponed = 0;
+		for (int i = 0; i < emus[0].getTxs().size(); i++) {
+			Transaction t0 = emus[0].getTxs().get(i);
+			Transaction t1 = emus[1].getTxs().get(i);
+			assertEquals(t0.id, t1.id);
+			assertEquals(t0.sender, t1.sender);
+			assertEquals(t0.receiver, t1.receiver);
+			assertEquals(t0.amount, t1.amount);
+			assertEquals(t0.type, t1.type);
+			assertEquals(t0.ts.value, t1.ts.value);
+			assertEquals(t0.block.getHeight(), t1.block.getHeight());
+			assertEquals(bcs[0].getTxRandomId(t0.id), bcs[1].getTxRandomId(t1.id));
+			if (t1.block.getHeight() != t1.ts.value >>> 32)
+				postponed++;
+			if (t0.msg != null)
+				assertTrue(t0.msg.equals(t1.msg));
+		}
+		for (String name : new String[] { "COUNTER", "BYTECODE" }) {
+			Address a0 = emus[0].getAddress(name);
+			Address a1 = emus[1].getAddress(name);
+			assertEquals(a0.getBalance(), a1.getBalance());
+			assertEquals(emus[0].getTxAfter(a0, null).id, emus[1].getTxAfter(a1, null).id);
+		}
+		assertTrue(postponed > 0);
+		assertEquals(100, ntx(emus[1].getAddress("COUNTER")));
+		assertEquals(100, emus[1].getAddress("BYTECODE").getBytecode().getFieldValue("ntx"));
+	}
+
+	@Test
+	public void testLoadGenerator() throws Exception {
+		long[] state = null;
+		for (boolean bytecode : new boolean[] { false, true }) {
+			Emulator emu = new Emulator(1);
+			Address creator = emu.getAddress("CREATOR");
+			Address contract = emu.getAddress("CONTRACT");
+			emu.airDrop(creator, 10 * Contract.ONE_BURST);
+			emu.createConctract(creator, contract, MethodCallArgs.class, Contract.ONE_BURST, bytecode);
+			emu.forgeBlock();
+
+			LoadGenerator gen = new LoadGenerator(emu, contract, 7).setSenders(100, 1.1, 10000 * Contract.ONE_BURST)
+					.setTxsPerBlock(40).setExponentialAmounts(Contract.ONE_BURST, 5 * Contract.ONE_BURST)
+					.addAllMethods(1);
+			LoadGenerator.Report report = gen.run(20);
+
+			int txs = 0;
+			for (int n : report.getBlockTxs())
+				txs += n;
+			assertEquals(txs, report.getTxs());
+			assertTrue(report.getTxs() > 20 * 20);
+			assertTrue(report.getTxsAdded() >= report.getTxs());
+			assertEquals(bytecode, report.getSteps() > 0);
+
+			// the same load on Java and bytecode gives the same result
+			long[] s = new long[4];
+			int i = 0;
+			for (String f : new String[] { "methodCalled", "arg1", "arg2", "arg3" })
+				s[i++] = bytecode ? contract.getBytecode().getFieldValue(f) : (Long) field(contract.getContract(), f);
+			if (state != null)
+				assertArrayEquals(state, s);
+			state = s;
+		}
+	}
+
+	@Test
+	public void testEvents() throws Exception {
+		Emulator emu = new Emulator();
+		ArrayList<Block> blocks = new ArrayList<>();
+		ArrayList<Transaction> txs = new ArrayList<>();
+		ArrayList<EmulatorEvent> activations = new ArrayList<>();
+		ArrayList<EmulatorEvent> sleeps = new ArrayList<>();
+		HashMap<Address, Long> balances = new HashMap<>();
+		emu.blockForged().subscribe(blocks::add);
+		emu.txIncluded().subscribe(txs::add);
+		emu.contractActivated().subscribe(activations::add);
+		emu.contractSlept().subscribe(sleeps::add);
+		emu.balanceChanged().subscribe(e -> balances.merge(e.getAddress(), e.getValue(), Long::sum));
+
+		Address creator = emu.getAddress("CREATOR");
+		Address user = emu.getAddress("USER");
+		Address contract = emu.getAddress("CONTRACT");
+		Address counter = emu.getAddress("COUNTER");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.airDrop(user, 1000 * Contract.ONE_BURST);
+		emu.createConctract(creator, contract, SchedulerTest.Sleeper.class, Contract.ONE_BURST);
+		emu.createConctract(creator, counter, TXCounter.class, Contract.ONE_BURST, true);
+		emu.forgeBlock();
+
+		emu.send(user, contract, 11 * Contract.ONE_BURST);
+		emu.send(user, counter, 2 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		long sleepHeight = emu.getCurrentBlock().getHeight();
+		for (int i = 0; i < 4; i++)
+			emu.forgeBlock();
+
+		// the genesis block is forged before subscribing
+		assertEquals(emu.getBlocks().subList(1, emu.getBlocks().size()), blocks);
+		assertEquals(emu.getTxs(), txs);
+
+		// the counter runs on creation, both contracts on the payments
+		assertEquals(3, activations.size());
+		assertEquals(counter, activations.get(0).getAddress());
+		assertEquals(contract, activations.get(1).getAddress());
+		assertEquals(emu.getTx(3), activations.get(1).getTx());
+		assertEquals(counter, activations.get(2).getAddress());
+
+		assertEquals(1, sleeps.size());
+		assertEquals(contract, sleeps.get(0).getAddress());
+		assertEquals(sleepHeight, sleeps.get(0).getHeight());
+		assertEquals(sleepHeight + 2, sleeps.get(0).getValue());
+
+		// all changes published, including the activation fees
+		for (Address ad : emu.getAddresses())
+			assertEquals(ad.getBalance(), balances.getOrDefault(ad, 0L).longValue());
+		assertTrue(balances.get(counter) < Contract.ONE_BURST * 3);
+	}
+
+	@Test
+	public void testDispatch() throws Exception {
+		// same hashes as the compiler
+		for (Class<?> c : new Class<?>[] { MethodCallArgs.class, PaymentChannel.class }) {
+			Dispatcher dispatcher = Dispatcher.get(c);
+			for (bt.compiler.Method m : BT.compileContract(c.asSubclass(Contract.class)).getMethods()) {
+				if (!Modifier.isPublic(m.getNode().access) || m.getName().equals(Compiler.INIT_METHOD)
+						|| m.getName().equals(Compiler.TX_RECEIVED_METHOD))
+					continue;
+				assertTrue(m.getName(), dispatcher.find(m.getHash()) >= 0);
+			}
+		}
+
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		Address payee = emu.getAddress("PAYEE");
+		Address args = emu.getAddress("ARGS");
+		Address channel = emu.getAddress("CHANNEL");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.createConctract(creator, args, MethodCallArgs.class, Contract.ONE_BURST);
+		emu.createConctract(creator, channel, PaymentChannel.class, Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		// method calls from the emulator carry the on-chain message
+		Compiler comp = BT.compileContract(MethodCallArgs.class);
+		Register call = Register.newMethodCall(MethodCallArgs.class.getMethod("method2", long.class, long.class),
+				new Object[] { 3L, 4L });
+		assertTrue(call.equals(message(BT.callMethodMessage(comp.getMethod("method2"), 3L, 4L))));
+
+		// a message routed by the method hash, like on-chain
+		emu.send(creator, args, Contract.ONE_BURST, message(BT.callMethodMessage(comp.getMethod("method2"), 3L, 4L)));
+		emu.forgeBlock();
+		assertEquals(2L, field(args.getContract(), "methodCalled"));
+		assertEquals(3L, field(args.getContract(), "arg1"));
+		assertEquals(4L, field(args.getContract(), "arg2"));
+
+		// any other message goes to txReceived
+		emu.send(creator, args, Contract.ONE_BURST, "hello");
+		emu.forgeBlock();
+		assertEquals(0L, field(args.getContract(), "methodCalled"));
+
+		// objects given from the emulator, converted as on a message
+		emu.send(creator, channel, Contract.ONE_BURST, Register.newMethodCall(
+				PaymentChannel.class.getMethod("openChannel", Address.class, long.class), new Object[] { payee, 60L }));
+		emu.forgeBlock();
+		assertSame(payee, field(channel.getContract(), "payee"));
+	}
+
+	private static Register message(byte[] bytes) {
+		ByteBuffer b = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		return Register.newInstance(b.getLong(), b.getLong(), b.getLong(), b.getLong());
+	}
+
+	private static long[] hashes(Emulator emu, boolean chained, long amount) throws Exception {
+		emu.setChainedHashes(chained);
+		Address user = emu.getAddress("USER");
+		emu.airDrop(user, 1000 * Contract.ONE_BURST);
+		int nblocks = 10;
+		long[] ret = new long[nblocks * 4];
+		for (int i = 0; i < nblocks; i++) {
+			emu.send(user, emu.getAddress("RECEIVER"), amount * Contract.ONE_BURST);
+			emu.forgeBlock();
+			System.arraycopy(emu.getPrevBlock().hash.value, 0, ret, i * 4, 4);
+		}
+		return ret;
+	}
+
+	private static long ntx(Address counter) throws Exception {
+		return (Long) field(counter.getContract(), "ntx");
+	}
+
+	private static Object field(Contract c, String name) throws Exception {
+		java.lang.reflect.Field f = c.getClass().getDeclaredField(name);
+		f.setAccessible(true);
+		return f.get(c);
+	}
+}
@@ -0,0 +1,41 @@
+package bt;
+
+import bt.ui.EmulatorWindow;
+
+/**
+ * Calls private methods with local variables, one of them recursive.
+ *
+ * @author jjos
+ */
+public class LocalCalls extends Contract {
+
+	long sum, diff, fact;
+
+	@Override
+	public void txReceived() {
+		long a = getCurrentTxAmount() / ONE_BURST;
+		long b = 3;
+		sum = add(a, b);
+		diff = sub(a, b);
+		fact = factorial(b + 2);
+	}
+
+	private long add(long a, long b) {
+		long c = a + b;
+		return c;
+	}
+
+	private long sub(long a, long b) {
+		return a - b;
+	}
+
+	private long factorial(long n) {
+		if (n <= 1)
+			return 1;
+		return n * factorial(n - 1);
+	}
+
+	public static void main(String[] args) {
+		new EmulatorWindow(LocalCalls.class);
+	}
+}
@@ -0,0 +1,118 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import bt.sample.TXCounter;
+
+/**
+ * Tests for the emulator contract scheduling, no node is required.
+ *
+ * @author jjos
+ */
+public class SchedulerTest {
+
+	/**
+	 * Sleeps two blocks and then send back the amount received.
+	 */
+	public static class Sleeper extends Contract {
+		long wakeHeight;
+
+		@Override
+		public void txReceived() {
+			sleep(2);
+			wakeHeight = getBlockHeight();
+			sendAmount(getCurrentTxAmount(), getCurrentTxSender());
+		}
+	}
+
+	@Test
+	public void testSleep() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("SLEEP_CREATOR");
+		Address user = emu.getAddress("SLEEP_USER");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.airDrop(user, 1000 * Contract.ONE_BURST);
+
+		Address contract = emu.getAddress("SLEEP_CONTRACT");
+		emu.createConctract(creator, contract, Sleeper.class, Contract.ONE_BURST);
+		emu.forgeBlock();
+		assertNotNull(contract.getContract().fiber);
+
+		emu.send(user, contract, 11 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		long sleepHeight = emu.getCurrentBlock().getHeight();
+		assertTrue(contract.isSleeping());
+
+		emu.forgeBlock();
+		assertTrue(contract.isSleeping());
+		emu.forgeBlock();
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		assertFalse(contract.isSleeping());
+		assertEquals(sleepHeight + 2, ((Sleeper) contract.getContract()).wakeHeight);
+		assertEquals(1000 * Contract.ONE_BURST - Contract.ONE_BURST, user.getBalance());
+	}
+
+	@Test(timeout = 60000)
+	public void testManyBlocks() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("MANY_CREATOR");
+		emu.airDrop(creator, 100000 * Contract.ONE_BURST);
+
+		Address contract = emu.getAddress("MANY_COUNTER");
+		emu.createConctract(creator, contract, TXCounter.class, Contract.ONE_BURST);
+		emu.forgeBlock();
+		assertNull(contract.getContract().fiber);
+
+		int nblocks = 10000;
+		for (int i = 0; i < nblocks; i++) {
+			emu.send(creator, contract, Contract.ONE_BURST);
+			emu.forgeBlock();
+		}
+
+		TXCounter c = (TXCounter) contract.getContract();
+		java.lang.reflect.Field ntx = TXCounter.class.getDeclaredField("ntx");
+		ntx.setAccessible(true);
+		assertEquals(nblocks, ntx.getLong(c));
+	}
+
+	@Test(timeout = 60000)
+	public void testClose() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("CREATOR");
+		Address contract = emu.getAddress("SLEEPER");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.createConctract(creator, contract, Sleeper.class, Contract.ONE_BURST);
+		emu.forgeBlock();
+		int threads = fibers();
+
+		for (int i = 0; i < 50; i++) {
+			Emulator fork = emu.fork();
+			// the fork contract is left sleeping on its fiber
+			fork.send(creator, contract, 11 * Contract.ONE_BURST);
+			fork.forgeBlock();
+			assertTrue(fork.getAddress("SLEEPER").isSleeping());
+			fork.close();
+		}
+		assertEquals(threads, fibers());
+
+		emu.close();
+		assertEquals(threads - 1, fibers());
+		try {
+			emu.forgeBlock();
+			fail("closed emulators cannot be changed");
+		} catch (IllegalStateException expected) {
+		}
+	}
+
+	private static int fibers() {
+		int n = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			if (t instanceof Scheduler.Fiber && t.isAlive())
+				n++;
+		return n;
+	}
+}